@@ -0,0 +1,190 @@
+/*
+ * Copyright 2015 Kevin Liu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.airk.trigger.compiler;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * Generates com.github.airk.trigger.GeneratedFactoryIndex, which creates every persist-able
+ * Action, ContextAction and Condition of the app without reflection. Persist-able means public,
+ * static if nested, not abstract and with a public no-arg constructor, the same rule Trigger
+ * checks at runtime. Keys are the binary class names, so jobs persisted before still match.
+ * <p/>
+ * No annotation is needed, all classes compiled together are looked at.
+ */
+@SupportedAnnotationTypes("*")
+public final class FactoryIndexProcessor extends AbstractProcessor {
+    private static final String PACKAGE = "com.github.airk.trigger";
+    private static final String INDEX = "GeneratedFactoryIndex";
+    private static final String[] BASES = new String[]{
+            PACKAGE + ".Action",
+            PACKAGE + ".ContextAction",
+            PACKAGE + ".Condition"
+    };
+
+    //binary name -> canonical name, sorted so the output is stable
+    private final TreeMap<String, String> found = new TreeMap<>();
+    private boolean written = false;
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        List<TypeMirror> bases = new ArrayList<>();
+        for (String name : BASES) {
+            TypeElement base = processingEnv.getElementUtils().getTypeElement(name);
+            if (base != null) {
+                bases.add(processingEnv.getTypeUtils().erasure(base.asType()));
+            }
+        }
+        if (bases.isEmpty())
+            return false;
+        for (TypeElement type : ElementFilter.typesIn(roundEnv.getRootElements())) {
+            collect(type, bases);
+        }
+        //sources created in the last round are not compiled, so write with the round that found them
+        if (!roundEnv.processingOver() && !written && !found.isEmpty()) {
+            written = true;
+            write();
+        }
+        //never claim anything, other processors see all the same
+        return false;
+    }
+
+    private void collect(TypeElement type, List<TypeMirror> bases) {
+        for (TypeElement nested : ElementFilter.typesIn(type.getEnclosedElements())) {
+            collect(nested, bases);
+        }
+        if (type.getKind() != ElementKind.CLASS)
+            return;
+        Set<Modifier> modifiers = type.getModifiers();
+        if (!modifiers.contains(Modifier.PUBLIC) || modifiers.contains(Modifier.ABSTRACT))
+            return;
+        if (type.getNestingKind() == NestingKind.MEMBER && !modifiers.contains(Modifier.STATIC))
+            return;
+        if (type.getNestingKind() != NestingKind.TOP_LEVEL && type.getNestingKind() != NestingKind.MEMBER)
+            return;
+        if (!isSubtype(type, bases) || !hasPublicNoArgConstructor(type))
+            return;
+        String binaryName = processingEnv.getElementUtils().getBinaryName(type).toString();
+        if (written) {
+            //generated by another processor after the index, it is created by reflection
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING,
+                    binaryName + " is not in " + INDEX + ", it will be created by reflection.", type);
+            return;
+        }
+        found.put(binaryName, type.getQualifiedName().toString());
+    }
+
+    private boolean isSubtype(TypeElement type, List<TypeMirror> bases) {
+        TypeMirror mirror = processingEnv.getTypeUtils().erasure(type.asType());
+        for (TypeMirror base : bases) {
+            if (processingEnv.getTypeUtils().isSubtype(mirror, base))
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean hasPublicNoArgConstructor(TypeElement type) {
+        List<ExecutableElement> constructors = ElementFilter.constructorsIn(type.getEnclosedElements());
+        for (ExecutableElement c : constructors) {
+            if (c.getParameters().isEmpty() && c.getModifiers().contains(Modifier.PUBLIC))
+                return true;
+        }
+        return false;
+    }
+
+    private void write() {
+        StringBuilder src = new StringBuilder();
+        src.append("package ").append(PACKAGE).append(";\n\n")
+                .append("import java.util.HashMap;\n\n")
+                .append("/**\n * Generated by ").append(getClass().getName()).append(", do not edit.\n */\n")
+                .append("final class ").append(INDEX).append(" implements FactoryIndex {\n")
+                .append("    private final HashMap<String, Integer> ids = new HashMap<String, Integer>();\n")
+                .append("    private final HashMap<Class<?>, String> keys = new HashMap<Class<?>, String>();\n\n")
+                .append("    ").append(INDEX).append("() {\n");
+        int id = 0;
+        for (Map.Entry<String, String> entry : found.entrySet()) {
+            src.append("        add(").append(id++).append(", \"").append(entry.getKey()).append("\", ")
+                    .append(entry.getValue()).append(".class);\n");
+        }
+        src.append("    }\n\n")
+                .append("    private void add(int id, String key, Class<?> clz) {\n")
+                .append("        ids.put(key, id);\n")
+                .append("        keys.put(clz, key);\n")
+                .append("    }\n\n")
+                .append("    @Override\n")
+                .append("    public Object create(String key) {\n")
+                .append("        Integer id = ids.get(key);\n")
+                .append("        if (id == null)\n")
+                .append("            return null;\n")
+                .append("        switch (id) {\n");
+        id = 0;
+        for (String canonical : found.values()) {
+            src.append("            case ").append(id++).append(":\n")
+                    .append("                return new ").append(canonical).append("();\n");
+        }
+        src.append("            default:\n")
+                .append("                return null;\n")
+                .append("        }\n")
+                .append("    }\n\n")
+                .append("    @Override\n")
+                .append("    public String keyOf(Class<?> clz) {\n")
+                .append("        return keys.get(clz);\n")
+                .append("    }\n")
+                .append("}\n");
+        Writer writer = null;
+        try {
+            JavaFileObject file = processingEnv.getFiler().createSourceFile(PACKAGE + "." + INDEX);
+            writer = file.openWriter();
+            writer.write(src.toString());
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    "Can not write " + INDEX + ": " + e.getMessage());
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+    }
+}
@@ -11,6 +11,7 @@ import android.util.Log;
 import com.github.airk.trigger.Action;
 import com.github.airk.trigger.Condition;
 import com.github.airk.trigger.ContextAction;
+import com.github.airk.trigger.ExistingJobPolicy;
 import com.github.airk.trigger.PersistReceiver;
 import com.github.airk.trigger.Job;
 import com.github.airk.trigger.ThreadSpace;
@@ -19,6 +20,7 @@ import com.github.airk.trigger.Trigger;
 
 import java.io.File;
 import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.TimeoutException;
@@ -77,7 +79,7 @@ public class TestTriggerActivity extends TestBaseActivity {
         actCounter = null;
         timeoutLatch = null;
         trigger.stopAndReset();
-        File file = new File(getFilesDir(), "job_persist");
+        File file = new File(getFilesDir(), "job_journal");
         deleteDir(file);
     }
 
@@ -95,6 +97,21 @@ public class TestTriggerActivity extends TestBaseActivity {
         file.delete();
     }
 
+    //jobs loaded back from the store through TriggerBinder.persistedCount(), after persisting is done
+    private int persistedCount(boolean rebootOnly) {
+        try {
+            Field f = trigger.getClass().getDeclaredField("triggerBinder");
+            f.setAccessible(true);
+            Object binder = f.get(trigger);
+            Method count = binder.getClass().getDeclaredMethod("persistedCount", boolean.class);
+            count.setAccessible(true);
+            return (Integer) count.invoke(binder, rebootOnly);
+        } catch (Exception ignore) {
+            assertEquals(1, 2);
+            return -1;
+        }
+    }
+
     @Test
     void testIllegalClassType() {
         try {
@@ -455,11 +472,7 @@ public class TestTriggerActivity extends TestBaseActivity {
             timeoutLatch.await(2000);
             assertEquals(1, 2);
         } catch (TimeoutException ignore) {
-            File file = new File(getFilesDir(), "job_persist");
-            assertTrue(file.exists());
-            assertTrue(file.isDirectory());
-            assertNotNull(file.listFiles());
-            assertEquals(file.listFiles().length, 3);
+            assertEquals(persistedCount(true), 3);
         }
 
         //fake device off
@@ -500,6 +513,60 @@ public class TestTriggerActivity extends TestBaseActivity {
         }
     }
 
+    @Test void testCancelJobGroup() {
+        timeoutLatch = new TimeoutLatch(1);
+        Job job1 = new Job("sync/photos/album42", new Act())
+                .withExtra(new Cond1());
+        Job job2 = new Job("sync/photos", new Act())
+                .withExtra(new Cond1());
+        Job job3 = new Job("sync/photosAlbum", new Act())
+                .withExtra(new Cond1());
+        trigger.schedule(job1, job2, job3);
+        trigger.cancelGroup("sync/photos");
+        sendBroadcastDelay(COND1);
+        try {
+            timeoutLatch.await(AWAIT_TIME);
+            assertEquals(actCounter.get(), 1);
+        } catch (TimeoutException ignore) {
+            assertEquals(1, 2);
+        }
+
+        //the canceled ones must not follow
+        timeoutLatch = new TimeoutLatch(1);
+        try {
+            timeoutLatch.await(AWAIT_TIME);
+            assertEquals(1, 2);
+        } catch (TimeoutException ignore) {
+            assertEquals(actCounter.get(), 1);
+        }
+    }
+
+    @Test void testExistingJobPolicy() {
+        timeoutLatch = new TimeoutLatch(1);
+        Job job1 = new Job(new Act())
+                .withExtra(new Cond1());
+        Job job2 = new Job(new Act())
+                .withExtra(new Cond1());
+        trigger.schedule(job1, ExistingJobPolicy.KEEP);
+        trigger.schedule(job2, ExistingJobPolicy.KEEP);
+        sendBroadcastDelay(COND1);
+        try {
+            timeoutLatch.await(AWAIT_TIME);
+            assertEquals(actCounter.get(), 1);
+        } catch (TimeoutException ignore) {
+            assertEquals(1, 2);
+        }
+
+        //the kept job is the only one
+        timeoutLatch = new TimeoutLatch(1);
+        try {
+            timeoutLatch.await(AWAIT_TIME);
+            assertEquals(1, 2);
+        } catch (TimeoutException ignore) {
+            assertEquals(actCounter.get(), 1);
+        }
+    }
+
     @Test void testNetworkType() {
         timeoutLatch = new TimeoutLatch(1);
         Job job = new Job(new Act())
@@ -0,0 +1,4 @@
+# Generated by trigger-compiler in the app, loaded by name
+-keep class com.github.airk.trigger.GeneratedFactoryIndex {
+    <init>();
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2015 Kevin Liu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.airk.trigger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * {@link JobStore} which returns at once and writes on a writer thread. Edits queued while the
+ * writer is busy are committed together as one batch by the next run, so a burst of schedules
+ * costs one flush instead of one per job.
+ */
+final class AsyncJobStore implements JobStore {
+    private final JobStore store;
+    private final Executor writer;
+    //guarded by this
+    private ArrayList<Runnable> pending = new ArrayList<>();
+    private boolean commitScheduled = false;
+    //edits after close are dropped, the writer may be shut down by then
+    private boolean closed = false;
+    //identity -> content hash of the job as the store has it, putting it unchanged costs nothing
+    private final HashMap<String, Integer> stored = new HashMap<>();
+    //batches are committed one by one in queued order
+    private final Object commitLock = new Object();
+    private final Runnable commitTask = new Runnable() {
+        @Override
+        public void run() {
+            commit();
+        }
+    };
+
+    AsyncJobStore(JobStore store, Executor writer) {
+        this.store = store;
+        this.writer = writer;
+    }
+
+    /**
+     * Block until all edits queued before are committed.
+     */
+    void flush() {
+        commit();
+    }
+
+    @Override
+    public Collection<Job.JobInfo> load(boolean rebootOnly) {
+        flush();
+        Collection<Job.JobInfo> infos = store.load(rebootOnly);
+        synchronized (this) {
+            for (Job.JobInfo info : infos) {
+                stored.put(info.identity, info.hashCode());
+            }
+        }
+        return infos;
+    }
+
+    @Override
+    public void put(final Job.JobInfo info) {
+        int hash = info.hashCode();
+        synchronized (this) {
+            Integer old = stored.put(info.identity, hash);
+            if (old != null && old == hash)
+                return;
+        }
+        enqueue(new Runnable() {
+            @Override
+            public void run() {
+                store.put(info);
+            }
+        });
+    }
+
+    @Override
+    public void remove(final String identity) {
+        synchronized (this) {
+            stored.remove(identity);
+        }
+        enqueue(new Runnable() {
+            @Override
+            public void run() {
+                store.remove(identity);
+            }
+        });
+    }
+
+    @Override
+    public void removeWithTag(final String tag) {
+        synchronized (this) {
+            //which ones are removed is only known by the store
+            stored.clear();
+        }
+        enqueue(new Runnable() {
+            @Override
+            public void run() {
+                store.removeWithTag(tag);
+            }
+        });
+    }
+
+    @Override
+    public void clear() {
+        synchronized (this) {
+            stored.clear();
+        }
+        enqueue(new Runnable() {
+            @Override
+            public void run() {
+                store.clear();
+            }
+        });
+    }
+
+    @Override
+    public void batch(Runnable edits) {
+        //edits made here are queued and committed in one batch anyway
+        edits.run();
+    }
+
+    /**
+     * Commit what is queued and close the store on the writer, the caller doesn't wait for it.
+     * Edits made after this are ignored.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+        }
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                commit();
+                store.close();
+            }
+        });
+    }
+
+    private void enqueue(Runnable edit) {
+        boolean schedule;
+        synchronized (this) {
+            if (closed)
+                return;
+            pending.add(edit);
+            schedule = !commitScheduled;
+            commitScheduled = true;
+        }
+        if (schedule) {
+            writer.execute(commitTask);
+        }
+    }
+
+    private void commit() {
+        synchronized (commitLock) {
+            final List<Runnable> edits;
+            synchronized (this) {
+                edits = pending;
+                pending = new ArrayList<>();
+                commitScheduled = false;
+            }
+            if (edits.isEmpty())
+                return;
+            store.batch(new Runnable() {
+                @Override
+                public void run() {
+                    for (Runnable edit : edits) {
+                        edit.run();
+                    }
+                }
+            });
+        }
+    }
+}
@@ -67,7 +67,7 @@ final class ChargingStatusController implements StatusController {
         @Override
         public void onReceive(Context context, Intent intent) {
             parseStatus(null);
-            context.startService(TriggerLoop.deviceStatusChanged(context, Job.CHARGING_KEY));
+            TriggerLoop.reportStatusChanged(context, Job.CHARGING_KEY);
         }
     }
 }
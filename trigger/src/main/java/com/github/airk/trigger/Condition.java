@@ -47,8 +47,7 @@ public abstract class Condition implements Receiver {
     public void onReceive(Context context, Intent intent) {
         ConditionDesc condition = new ConditionDesc(getIdentify());
         condition.setSatisfy(satisfy(context, intent));
-        Intent data = TriggerLoop.newIntent(context, condition);
-        context.startService(data);
+        TriggerLoop.reportCondition(context, condition);
     }
 
     public abstract String[] getAction();
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2015 Kevin Liu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.airk.trigger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Interns condition identities into small integer ids, so jobs can keep their condition status
+ * as primitive bitmasks instead of maps keyed by strings.
+ */
+final class ConditionKeys {
+    static final int INVALID = -1;
+    static final int CHARGING = 0;
+    static final int NETWORK_TYPE = 1;
+    static final int IDLE_DEVICE = 2;
+
+    private static final HashMap<String, Integer> ids = new HashMap<>();
+    private static final ArrayList<String> names = new ArrayList<>();
+
+    static {
+        intern(Job.CHARGING_KEY);
+        intern(Job.NETWORK_TYPE_KEY);
+        intern(Job.IDLE_DEVICE_KEY);
+    }
+
+    private ConditionKeys() {
+    }
+
+    /**
+     * @return id of the identity, a new one will be allocated if it has never been seen.
+     */
+    static synchronized int intern(String identity) {
+        Integer id = ids.get(identity);
+        if (id == null) {
+            id = names.size();
+            ids.put(identity, id);
+            names.add(identity);
+        }
+        return id;
+    }
+
+    /**
+     * @return id of the identity or {@link #INVALID} if no job ever used it.
+     */
+    static synchronized int idOf(String identity) {
+        Integer id = ids.get(identity);
+        return id == null ? INVALID : id;
+    }
+
+    static synchronized String nameOf(int id) {
+        return names.get(id);
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2015 Kevin Liu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.airk.trigger;
+
+import java.util.Collections;
+import java.util.HashMap;
+
+/**
+ * Engine level registry of conditions. Only one {@link Condition} object is kept for each
+ * identity, all jobs waiting on the same identity share it.
+ */
+final class ConditionRegistry {
+    private final HashMap<String, Condition> shared = new HashMap<>();
+    //condition class name -> shared default-constructed instance, for jobs recovered by class name
+    private final HashMap<String, Condition> byClass = new HashMap<>();
+
+    /**
+     * @return shared instance of the condition's identity, the condition itself becomes the
+     * shared one if this identity is new.
+     */
+    synchronized Condition obtain(Condition condition) {
+        String identity = condition.getIdentify();
+        Condition existing = shared.get(identity);
+        if (existing != null)
+            return existing;
+        shared.put(identity, condition);
+        return condition;
+    }
+
+    /**
+     * @return shared instance of what the default constructor of the class creates, or a new one
+     * which is not shared yet. Only {@link #obtain(Condition)} shares it, once a job holding it is
+     * accepted, so a job dropped before that leaves nothing behind.
+     */
+    synchronized Condition instanceOf(String className) throws Exception {
+        Condition condition = byClass.get(className);
+        if (condition != null)
+            return condition;
+        condition = (Condition) Factories.newInstance(className);
+        Condition existing = shared.get(condition.getIdentify());
+        if (existing != null) {
+            byClass.put(className, existing);
+            return existing;
+        }
+        return condition;
+    }
+
+    /**
+     * Drop the identity while no job is waiting on it.
+     */
+    synchronized void release(String identity) {
+        Condition condition = shared.remove(identity);
+        if (condition != null) {
+            byClass.values().removeAll(Collections.singleton(condition));
+        }
+    }
+
+    synchronized void clear() {
+        shared.clear();
+        byClass.clear();
+    }
+}
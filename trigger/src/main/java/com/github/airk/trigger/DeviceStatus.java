@@ -33,22 +33,13 @@ final class DeviceStatus {
     static final AtomicBoolean connectivityConstraintSatisfied = new AtomicBoolean();
     private static final Object lock = new Object();
     private static DeviceStatus sInstance;
-    public Class<?>[] CONTROLLERS = new Class[]{
-            NetworkStatusController.class,
-            ChargingStatusController.class,
-            IdleStatusController.class
-    };
     private List<StatusController> controllers;
 
     private DeviceStatus(Context context) {
         controllers = new ArrayList<>();
-        for (Class<?> controller : CONTROLLERS) {
-            try {
-                controllers.add((StatusController) controller.newInstance());
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        }
+        controllers.add(new NetworkStatusController());
+        controllers.add(new ChargingStatusController());
+        controllers.add(new IdleStatusController());
         for (StatusController c : controllers) {
             c.onCreate(context);
         }
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2015 Kevin Liu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.airk.trigger;
+
+/**
+ * What to do while scheduling a Job which has the same content (tag, action, conditions and
+ * all configurations) as one already waiting in Trigger.
+ */
+public enum ExistingJobPolicy {
+    /**
+     * Keep the existing one, the new Job will be dropped.
+     */
+    KEEP,
+    /**
+     * Cancel the existing one and schedule the new Job.
+     */
+    REPLACE,
+    /**
+     * Schedule the new Job anyway, both of them will be triggered.
+     */
+    APPEND
+}
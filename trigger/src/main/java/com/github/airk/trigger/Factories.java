@@ -0,0 +1,59 @@
+/*
+ * Copyright 2015 Kevin Liu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.airk.trigger;
+
+import android.util.Log;
+
+/**
+ * Creates actions and conditions by their persisted keys. The generated {@link FactoryIndex} is
+ * used if the app has one, reflection is the fallback for classes it doesn't know.
+ */
+final class Factories {
+    static final String GENERATED_INDEX = "com.github.airk.trigger.GeneratedFactoryIndex";
+    private static final String TAG = "Factories";
+    private static final FactoryIndex INDEX = loadIndex();
+
+    private Factories() {
+    }
+
+    private static FactoryIndex loadIndex() {
+        try {
+            return (FactoryIndex) Class.forName(GENERATED_INDEX).newInstance();
+        } catch (ClassNotFoundException ignore) {
+            //trigger-compiler is not used
+        } catch (Exception e) {
+            Log.w(TAG, "Can not load " + GENERATED_INDEX + ", fall back to reflection.", e);
+        }
+        return null;
+    }
+
+    static Object newInstance(String key) throws Exception {
+        Object obj = INDEX == null ? null : INDEX.create(key);
+        if (obj == null) {
+            obj = Class.forName(key).newInstance();
+        }
+        return obj;
+    }
+
+    /**
+     * @return the key to persist for this class.
+     */
+    static String keyOf(Class<?> clz) {
+        String key = INDEX == null ? null : INDEX.keyOf(clz);
+        return key == null ? clz.getName() : key;
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2015 Kevin Liu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.airk.trigger;
+
+/**
+ * Creates persist-able actions and conditions without reflection. The implementation,
+ * {@value Factories#GENERATED_INDEX}, is generated into the app by trigger-compiler.
+ */
+interface FactoryIndex {
+    /**
+     * @return a new instance of the class with this key, null if the key is unknown.
+     */
+    Object create(String key);
+
+    /**
+     * @return the key of this class, which stays the same after shrinking, null if unknown.
+     */
+    String keyOf(Class<?> clz);
+}
@@ -63,7 +63,7 @@ final class IdleStatusController implements StatusController {
 
     private void reportNewIdleState(boolean idle) {
         DeviceStatus.idleConstraintSatisfied.set(idle);
-        context.startService(TriggerLoop.deviceStatusChanged(context, Job.IDLE_DEVICE_KEY));
+        TriggerLoop.reportStatusChanged(context, Job.IDLE_DEVICE_KEY);
     }
 
     class IdlenessTracker extends BroadcastReceiver {
@@ -20,20 +20,13 @@ import android.support.annotation.IntDef;
 import android.text.TextUtils;
 import android.util.Log;
 
-import com.google.gson.Gson;
 import com.google.gson.annotations.SerializedName;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.io.Writer;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -53,15 +46,30 @@ public final class Job {
     public @interface NetworkType {
     }
 
+    public static final int PRIORITY_LOW = -1;
+    public static final int PRIORITY_DEFAULT = 0;
+    public static final int PRIORITY_HIGH = 1;
+
     static final int NETWORK_TYPE_INVALID = -1;
     private static final String TAG = "Job";
     private static final int SECRET_CODE = 0x611;
-    HashMap<String, Boolean> condSatisfied = new HashMap<>();
+    //one bit per condition slot, so no more than 64 conditions for a single job
+    private static final int MAX_CONDITIONS = 64;
+    //interned condition ids, slot i owns bit i of the mask below
+    //slots, mask and counter are guarded by this, binder and handler threads both update them
+    private int[] condIds = new int[4];
+    private int condCount = 0;
+    private long satisfiedMask = 0L;
+    //conditions not satisfied yet, only changes on status transitions
+    private int unsatisfied = 0;
     JobInfo jobInfo = new JobInfo();
     List<Condition> exConds = new ArrayList<>();
+    //null for recovered jobs until the first trigger, see obtainAction()
     ActBase action;
-    Object deadLineObj = null; //Store deadline Object, list of PendingIntent(after >5min) or Runnable(otherwise)
+    Object deadLineObj = null; //Store deadline Object, TimingWheel.Timeout for deadline in 1 minute, others only rely on the deadline alarm
     boolean canBePersist = true;
+    //hash of jobInfo when it was scheduled, key of the content index in TriggerLoop
+    int contentHash;
 
     //full-version
     public Job(boolean persisAfterReboot, String tag, Action act) {
@@ -106,23 +114,26 @@ public final class Job {
     private Job() {
     }
 
-    static Job createJobFromPersistInfo(JobInfo existInfo) {
+    static Job createJobFromPersistInfo(JobInfo existInfo, ConditionRegistry registry) {
         if (existInfo == null)
             return null;
         Job job = new Job();
         job.jobInfo = existInfo;
         try {
-            Class<?> clz = Class.forName(job.jobInfo.actionClzName);
-            Object act = clz.newInstance();
-            if (act instanceof Action) {
-                job.action = (Action) act;
-            } else if (act instanceof ContextAction) {
-                job.action = (ContextAction) act;
-            }
+            //the action waits for the first trigger, conditions are shared by the registry once the job is added
             for (String condName : job.jobInfo.conditions) {
-                Class<?> condClz = Class.forName(condName);
-                Condition cond = (Condition) condClz.newInstance();
+                Condition cond = registry.instanceOf(condName);
                 job.exConds.add(cond);
+                job.addCondSlot(ConditionKeys.intern(cond.getIdentify()));
+            }
+            if (job.jobInfo.networkType != NETWORK_TYPE_INVALID) {
+                job.addCondSlot(ConditionKeys.NETWORK_TYPE);
+            }
+            if (job.jobInfo.needCharging) {
+                job.addCondSlot(ConditionKeys.CHARGING);
+            }
+            if (job.jobInfo.needDeviceIdle) {
+                job.addCondSlot(ConditionKeys.IDLE_DEVICE);
             }
             job.resetConds();
         } catch (Exception e) {
@@ -132,6 +143,33 @@ public final class Job {
         return job;
     }
 
+    /**
+     * @return the action, a recovered job creates it here for the first time, null if it can not
+     * be created.
+     */
+    synchronized ActBase obtainAction() {
+        if (action == null && jobInfo.actionClzName != null) {
+            try {
+                Object act = Factories.newInstance(jobInfo.actionClzName);
+                if (act instanceof Action) {
+                    action = (Action) act;
+                } else if (act instanceof ContextAction) {
+                    action = (ContextAction) act;
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        return action;
+    }
+
+    /**
+     * @return true if the identity is generated by Job, records with others are not ours.
+     */
+    static boolean isValidIdentity(String identity) {
+        return identity != null && identity.startsWith(SECRET_CODE + "_");
+    }
+
     private String generateIdentity() {
         String actName = (TextUtils.isEmpty(action.getClass().getSimpleName()) ? "Anonymous" : action.getClass().getSimpleName());
         return String.valueOf(SECRET_CODE) + "_" + (TextUtils.isEmpty(action.specialId()) ?
@@ -157,7 +195,7 @@ public final class Job {
                 Log.w(TAG, "If you want this Job can be persist, please keep Action class as PUBLIC and STATIC. So we can recover it from service restarting.");
             }
         }
-        jobInfo.actionClzName = action.getClass().getName();
+        jobInfo.actionClzName = Factories.keyOf(action.getClass());
     }
 
     public Job withExtra(Condition condition) {
@@ -178,26 +216,91 @@ public final class Job {
                 Log.w(TAG, "If you want this Job can be persist, please keep Condition class as PUBLIC and STATIC. So we can recover it from service restarting.");
             }
         }
-        jobInfo.conditions.add(condition.getClass().getName());
+        int id = ConditionKeys.intern(condition.getIdentify());
+        addCondSlot(id);
+        jobInfo.conditions.add(Factories.keyOf(condition.getClass()));
         exConds.add(condition);
-        condSatisfied.put(condition.getIdentify(), false);
+        setSatisfied(id, false);
         return this;
     }
 
-    void resetConds() {
-        condSatisfied.clear();
-        for (Condition c : exConds) {
-            condSatisfied.put(c.getIdentify(), false);
+    /**
+     * Clear all custom conditions' status, device status conditions are refreshed with the current
+     * device status.
+     */
+    synchronized void resetConds() {
+        satisfiedMask = 0L;
+        unsatisfied = condCount;
+        setSatisfied(ConditionKeys.NETWORK_TYPE, DeviceStatus.networkTypeSatisfied(jobInfo.networkType));
+        setSatisfied(ConditionKeys.CHARGING, DeviceStatus.chargingConstraintSatisfied.get());
+        setSatisfied(ConditionKeys.IDLE_DEVICE, DeviceStatus.idleConstraintSatisfied.get());
+    }
+
+    /**
+     * Replace own conditions with the shared ones from registry, so the same identity is only
+     * held once no matter how many jobs wait on it.
+     */
+    void shareConditions(ConditionRegistry registry) {
+        for (int i = 0; i < exConds.size(); i++) {
+            exConds.set(i, registry.obtain(exConds.get(i)));
         }
-        if (jobInfo.networkType != NETWORK_TYPE_INVALID) {
-            networkTypeInternal(jobInfo.networkType);
+    }
+
+    private int slotOf(int condId) {
+        for (int i = 0; i < condCount; i++) {
+            if (condIds[i] == condId)
+                return i;
         }
-        if (jobInfo.needCharging) {
-            needCharging(true);
+        return -1;
+    }
+
+    //status of all slots lives in one long
+    private synchronized void addCondSlot(int condId) {
+        if (slotOf(condId) != -1)
+            return;
+        if (condCount == MAX_CONDITIONS) {
+            throw new IllegalArgumentException("A Job can not hold more than " + MAX_CONDITIONS + " conditions.");
         }
-        if (jobInfo.needDeviceIdle) {
-            needDeviceIdle(true);
+        if (condCount == condIds.length) {
+            condIds = Arrays.copyOf(condIds, condIds.length * 2);
         }
+        condIds[condCount] = condId;
+        condCount++;
+        unsatisfied++;
+    }
+
+    synchronized boolean hasCond(int condId) {
+        return slotOf(condId) != -1;
+    }
+
+    /**
+     * @return false if this job doesn't contain the condition at all.
+     */
+    synchronized boolean setSatisfied(int condId, boolean satisfied) {
+        int slot = slotOf(condId);
+        if (slot == -1)
+            return false;
+        long bit = 1L << slot;
+        boolean was = (satisfiedMask & bit) != 0;
+        if (satisfied && !was) {
+            satisfiedMask |= bit;
+            unsatisfied--;
+        } else if (!satisfied && was) {
+            satisfiedMask &= ~bit;
+            unsatisfied++;
+        }
+        return true;
+    }
+
+    synchronized boolean allSatisfied() {
+        return condCount != 0 && unsatisfied == 0;
+    }
+
+    /**
+     * @return interned ids of all conditions this job waits on.
+     */
+    synchronized int[] condIds() {
+        return Arrays.copyOf(condIds, condCount);
     }
 
     public Job repeat() {
@@ -222,6 +325,16 @@ public final class Job {
         return this;
     }
 
+    /**
+     * Background actions waiting for a worker run in priority order, see {@link #PRIORITY_DEFAULT}.
+     * A waiting action gains one level per {@value PriorityExecutor#AGING_STEP} ms, so low ones
+     * still run under a burst of high ones.
+     */
+    public Job priority(int priority) {
+        jobInfo.priority = priority;
+        return this;
+    }
+
     public Job attachOn(ThreadSpace space) {
         jobInfo.threadSpace = space;
         return this;
@@ -232,14 +345,16 @@ public final class Job {
     }
 
     private Job networkTypeInternal(int type) {
-        condSatisfied.put(NETWORK_TYPE_KEY, DeviceStatus.networkTypeSatisfied(type));
+        addCondSlot(ConditionKeys.NETWORK_TYPE);
+        setSatisfied(ConditionKeys.NETWORK_TYPE, DeviceStatus.networkTypeSatisfied(type));
         jobInfo.networkType = type;
         return this;
     }
 
     public Job needCharging(boolean charge) {
         if (charge) {
-            condSatisfied.put(CHARGING_KEY, DeviceStatus.chargingConstraintSatisfied.get());
+            addCondSlot(ConditionKeys.CHARGING);
+            setSatisfied(ConditionKeys.CHARGING, DeviceStatus.chargingConstraintSatisfied.get());
         }
         jobInfo.needCharging = charge;
         return this;
@@ -247,7 +362,8 @@ public final class Job {
 
     public Job needDeviceIdle(boolean idle) {
         if (idle) {
-            condSatisfied.put(IDLE_DEVICE_KEY, DeviceStatus.idleConstraintSatisfied.get());
+            addCondSlot(ConditionKeys.IDLE_DEVICE);
+            setSatisfied(ConditionKeys.IDLE_DEVICE, DeviceStatus.idleConstraintSatisfied.get());
         }
         jobInfo.needDeviceIdle = idle;
         return this;
@@ -265,6 +381,11 @@ public final class Job {
         return true;
     }
 
+    @Override
+    public int hashCode() {
+        return 31 * jobInfo.hashCode() + (canBePersist ? 1 : 0);
+    }
+
     //for persist after reboot
     static class JobInfo {
         @SerializedName("persist")
@@ -286,34 +407,7 @@ public final class Job {
         @SerializedName("actname")
         String actionClzName;
         String tag;
-
-        public static JobInfo readFromFile(File file) throws IOException {
-            BufferedReader reader = new BufferedReader(new FileReader(file));
-            StringBuilder ret = new StringBuilder();
-            String line;
-            while ((line = reader.readLine()) != null) {
-                ret.append(line).append("\n");
-            }
-            String str = ret.toString();
-            return new Gson().fromJson(str, JobInfo.class);
-        }
-
-        public void writeToFile(File dir) throws IOException {
-            File file = new File(dir, identity + ".job");
-            //do this if this method is only called because of device shutdown
-            String content = new Gson().toJson(this);
-            Writer writer = new FileWriter(file);
-            writer.write(content);
-            writer.flush();
-            writer.close();
-        }
-
-        public void tryDelete(File dir) {
-            File file = new File(dir, identity + ".job");
-            if (file.exists() && file.isFile()) {
-                file.delete();
-            }
-        }
+        int priority = PRIORITY_DEFAULT;
 
         @Override
         public boolean equals(Object o) {
@@ -334,7 +428,26 @@ public final class Job {
             if (!this.conditions.equals(other.conditions)) return false;
             if (!this.actionClzName.equals(other.actionClzName)) return false;
             if (!this.tag.equals(other.tag)) return false;
+            if (this.priority != other.priority) return false;
             return true;
         }
+
+        @Override
+        public int hashCode() {
+            //same fields as equals
+            int result = persistAfterReboot ? 1 : 0;
+            result = 31 * result + (threadSpace != null ? threadSpace.hashCode() : 0);
+            result = 31 * result + networkType;
+            result = 31 * result + (needCharging ? 1 : 0);
+            result = 31 * result + (needDeviceIdle ? 1 : 0);
+            result = 31 * result + (repeat ? 1 : 0);
+            result = 31 * result + (int) (delay ^ (delay >>> 32));
+            result = 31 * result + (int) (deadline ^ (deadline >>> 32));
+            result = 31 * result + conditions.hashCode();
+            result = 31 * result + (actionClzName != null ? actionClzName.hashCode() : 0);
+            result = 31 * result + (tag != null ? tag.hashCode() : 0);
+            result = 31 * result + priority;
+            return result;
+        }
     }
 }
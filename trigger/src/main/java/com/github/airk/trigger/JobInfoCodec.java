@@ -0,0 +1,276 @@
+/*
+ * Copyright 2015 Kevin Liu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.airk.trigger;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Compact binary format of {@link Job.JobInfo}.
+ * <p/>
+ * A stream starts with a header: magic "TJ" and the format version. Numbers are varints and
+ * strings go through a string table of the stream, a string is written out the first time and
+ * referred by its index later, so condition class names, action class names and tags repeated by
+ * many jobs only cost a few bytes. Jobs persisted as JSON by older versions can still be read.
+ */
+final class JobInfoCodec {
+    static final int VERSION = 1;
+
+    private static final int MAGIC_0 = 'T';
+    private static final int MAGIC_1 = 'J';
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Gson GSON = new Gson();
+
+    private static final int FLAG_PERSIST = 1;
+    private static final int FLAG_CHARGING = 1 << 1;
+    private static final int FLAG_IDLE = 1 << 2;
+    private static final int FLAG_REPEAT = 1 << 3;
+    private static final int FLAG_MAIN_THREAD = 1 << 4;
+
+    //string table markers, others are index + STRING_REF
+    private static final int STRING_NULL = 0;
+    private static final int STRING_NEW = 1;
+    private static final int STRING_REF = 2;
+
+    //sanity bounds of what a job can hold, anything larger is a corrupt stream
+    private static final int MAX_STRING_BYTES = 1 << 20;
+    private static final int MAX_CONDITIONS = 1 << 10;
+
+    private JobInfoCodec() {
+    }
+
+    static void writeHeader(DataOutput out) throws IOException {
+        out.writeByte(MAGIC_0);
+        out.writeByte(MAGIC_1);
+        writeVarLong(out, VERSION);
+    }
+
+    /**
+     * @return format version of the stream.
+     */
+    static int readHeader(DataInput in) throws IOException {
+        if (in.readUnsignedByte() != MAGIC_0 || in.readUnsignedByte() != MAGIC_1) {
+            throw new IOException("Not a job stream.");
+        }
+        int version = (int) readVarLong(in);
+        if (version != VERSION) {
+            throw new IOException("Unknown job stream version " + version);
+        }
+        return version;
+    }
+
+    /**
+     * Read a job persisted as a JSON file by older versions.
+     */
+    static Job.JobInfo readJson(File file) throws IOException {
+        Reader reader = new BufferedReader(new FileReader(file));
+        try {
+            return GSON.fromJson(reader, Job.JobInfo.class);
+        } catch (JsonParseException e) {
+            throw new IOException(e.getMessage());
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Encode a job as a standalone stream, header included.
+     */
+    static byte[] toBytes(Job.JobInfo info) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeHeader(out);
+        new Encoder().write(out, info);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    static Job.JobInfo fromBytes(byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        readHeader(in);
+        return new Decoder().read(in);
+    }
+
+    static void writeVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Malformed varint.");
+    }
+
+    //zigzag, so small negative numbers like -1 stay small
+    static void writeSignedVarLong(DataOutput out, long value) throws IOException {
+        writeVarLong(out, (value << 1) ^ (value >> 63));
+    }
+
+    static long readSignedVarLong(DataInput in) throws IOException {
+        long raw = readVarLong(in);
+        return (raw >>> 1) ^ -(raw & 1);
+    }
+
+    /**
+     * Writes jobs into one stream, keeps the string table of it.
+     */
+    static final class Encoder {
+        private final HashMap<String, Integer> table = new HashMap<>();
+
+        void write(DataOutput out, Job.JobInfo info) throws IOException {
+            int flags = 0;
+            if (info.persistAfterReboot) flags |= FLAG_PERSIST;
+            if (info.needCharging) flags |= FLAG_CHARGING;
+            if (info.needDeviceIdle) flags |= FLAG_IDLE;
+            if (info.repeat) flags |= FLAG_REPEAT;
+            if (info.threadSpace == ThreadSpace.MAIN) flags |= FLAG_MAIN_THREAD;
+            writeVarLong(out, flags);
+            writeSignedVarLong(out, info.networkType);
+            writeSignedVarLong(out, info.delay);
+            writeSignedVarLong(out, info.deadline);
+            writeSignedVarLong(out, info.priority);
+            writeString(out, info.identity);
+            writeString(out, info.tag);
+            writeString(out, info.actionClzName);
+            writeVarLong(out, info.conditions.size());
+            for (String cond : info.conditions) {
+                writeString(out, cond);
+            }
+        }
+
+        void writeString(DataOutput out, String str) throws IOException {
+            if (str == null) {
+                writeVarLong(out, STRING_NULL);
+                return;
+            }
+            Integer index = table.get(str);
+            if (index != null) {
+                writeVarLong(out, index + STRING_REF);
+                return;
+            }
+            table.put(str, table.size());
+            byte[] bytes = str.getBytes(UTF_8);
+            writeVarLong(out, STRING_NEW);
+            writeVarLong(out, bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Reads jobs from one stream, keeps the string table of it.
+     */
+    static final class Decoder {
+        private final ArrayList<String> table = new ArrayList<>();
+
+        Job.JobInfo read(DataInput in) throws IOException {
+            Job.JobInfo info = new Job.JobInfo();
+            int flags = (int) readVarLong(in);
+            info.persistAfterReboot = (flags & FLAG_PERSIST) != 0;
+            info.needCharging = (flags & FLAG_CHARGING) != 0;
+            info.needDeviceIdle = (flags & FLAG_IDLE) != 0;
+            info.repeat = (flags & FLAG_REPEAT) != 0;
+            info.threadSpace = (flags & FLAG_MAIN_THREAD) != 0 ? ThreadSpace.MAIN : ThreadSpace.BACKGROUND;
+            info.networkType = (int) readSignedVarLong(in);
+            info.delay = readSignedVarLong(in);
+            info.deadline = readSignedVarLong(in);
+            info.priority = (int) readSignedVarLong(in);
+            info.identity = readString(in);
+            info.tag = readString(in);
+            info.actionClzName = readString(in);
+            int count = readLength(in, MAX_CONDITIONS);
+            List<String> conditions = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                conditions.add(readString(in));
+            }
+            info.conditions = conditions;
+            return info;
+        }
+
+        String readString(DataInput in) throws IOException {
+            long marker = readVarLong(in);
+            if (marker == STRING_NULL)
+                return null;
+            if (marker == STRING_NEW) {
+                byte[] bytes = new byte[readLength(in, MAX_STRING_BYTES)];
+                in.readFully(bytes);
+                String str = new String(bytes, UTF_8);
+                table.add(str);
+                return str;
+            }
+            long index = marker - STRING_REF;
+            if (index < 0 || index >= table.size()) {
+                throw new IOException("Bad string reference " + index);
+            }
+            return table.get((int) index);
+        }
+
+        //checked before anything is allocated with it
+        private static int readLength(DataInput in, int max) throws IOException {
+            long length = readVarLong(in);
+            if (length < 0 || length > max) {
+                throw new IOException("Bad length " + length);
+            }
+            return (int) length;
+        }
+
+        /**
+         * @return how many strings have been read so far, the stream can be cut back to here with
+         * {@link #continueWith(int)}.
+         */
+        int tableSize() {
+            return table.size();
+        }
+
+        /**
+         * @param tableSize strings the kept part of the stream holds, the ones read after it are
+         *                  gone with the cut off tail.
+         * @return an encoder which can keep appending to the stream this decoder has read.
+         */
+        Encoder continueWith(int tableSize) {
+            Encoder encoder = new Encoder();
+            for (int i = 0; i < tableSize; i++) {
+                encoder.table.put(table.get(i), i);
+            }
+            return encoder;
+        }
+    }
+}
@@ -0,0 +1,494 @@
+/*
+ * Copyright 2015 Kevin Liu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.airk.trigger;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Append-only store of {@link Job.JobInfo}. Adding and removing a job appends one record to the
+ * journal file, and the journal is compacted into a snapshot in background once it holds more
+ * dead records than live ones. Loading is one sequential read of the snapshot and the journal.
+ * <p/>
+ * Both files are {@link JobInfoCodec} streams. Jobs saved as one JSON file each by older versions
+ * are imported while loading.
+ */
+final class JobJournal {
+    private static final String TAG = "JobJournal";
+    private static final String SNAPSHOT_SUFFIX = ".snapshot";
+    private static final String JOURNAL_SUFFIX = ".journal";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+    //records between them are applied all or nothing
+    private static final byte OP_BATCH_BEGIN = 3;
+    private static final byte OP_BATCH_END = 4;
+    //don't bother compacting small journals
+    private static final int MIN_COMPACT_RECORDS = 32;
+
+    private final File snapshotFile;
+    private final File journalFile;
+    private final File[] legacyDirs;
+    private final Executor compactor;
+    private LinkedHashMap<String, Job.JobInfo> live;
+    //tag -> identities of live jobs with it
+    private HashMap<String, Set<String>> tags;
+    private DataOutputStream journal;
+    //string table of the journal file, null while there is no journal file
+    private JobInfoCodec.Encoder journalEncoder;
+    private int records = 0;
+    private boolean compactPending = false;
+    private boolean rewriteNeeded = false;
+    //legacy files imported into memory, deleted once they are in a snapshot
+    private boolean legacyImported = false;
+    private boolean batching = false;
+    //whether the begin of current batch has been written into the journal
+    private boolean batchOpened = false;
+
+    /**
+     * @param legacyDirs directories of the old one-file-per-job format, their jobs are imported
+     *                   into this journal while loading and the directories are removed.
+     */
+    JobJournal(File dir, String name, Executor compactor, File... legacyDirs) {
+        this.snapshotFile = new File(dir, name + SNAPSHOT_SUFFIX);
+        this.journalFile = new File(dir, name + JOURNAL_SUFFIX);
+        this.compactor = compactor;
+        this.legacyDirs = legacyDirs;
+    }
+
+    /**
+     * @return all jobs in this journal, keyed by identity.
+     */
+    synchronized Map<String, Job.JobInfo> load() {
+        ensureLoaded();
+        return new LinkedHashMap<>(live);
+    }
+
+    synchronized void put(Job.JobInfo info) {
+        ensureLoaded();
+        untag(live.put(info.identity, info));
+        tag(info);
+        append(OP_PUT, info.identity, info);
+    }
+
+    synchronized void remove(String identity) {
+        ensureLoaded();
+        Job.JobInfo removed = live.remove(identity);
+        if (removed == null)
+            return;
+        untag(removed);
+        append(OP_REMOVE, identity, null);
+    }
+
+    /**
+     * Remove all jobs with exactly this tag, only the matched jobs are touched.
+     */
+    synchronized void removeWithTag(String tag) {
+        ensureLoaded();
+        Set<String> identities = tags.get(tag);
+        if (identities == null)
+            return;
+        for (String identity : new ArrayList<>(identities)) {
+            remove(identity);
+        }
+    }
+
+    private void tag(Job.JobInfo info) {
+        if (info.tag == null)
+            return;
+        Set<String> identities = tags.get(info.tag);
+        if (identities == null) {
+            identities = new HashSet<>();
+            tags.put(info.tag, identities);
+        }
+        identities.add(info.identity);
+    }
+
+    private void untag(Job.JobInfo info) {
+        if (info == null || info.tag == null)
+            return;
+        Set<String> identities = tags.get(info.tag);
+        if (identities != null && identities.remove(info.identity) && identities.isEmpty()) {
+            tags.remove(info.tag);
+        }
+    }
+
+    /**
+     * Records appended until {@link #endBatch()} are flushed once, and recovered all or nothing.
+     */
+    synchronized void beginBatch() {
+        ensureLoaded();
+        batching = true;
+        batchOpened = false;
+    }
+
+    synchronized void endBatch() {
+        batching = false;
+        if (!batchOpened)
+            return;
+        batchOpened = false;
+        try {
+            journal.writeByte(OP_BATCH_END);
+            journal.flush();
+        } catch (IOException e) {
+            Log.w(TAG, "Commit failed, rewrite the snapshot.", e);
+            compact();
+            return;
+        }
+        mayCompact();
+    }
+
+    /**
+     * Close the journal file, it is opened again by the next edit.
+     */
+    synchronized void close() {
+        closeJournal();
+    }
+
+    synchronized void clear() {
+        closeJournal();
+        snapshotFile.delete();
+        journalFile.delete();
+        journalEncoder = null;
+        batchOpened = false;
+        live = new LinkedHashMap<>();
+        tags = new HashMap<>();
+        records = 0;
+        deleteLegacy();
+    }
+
+    private void ensureLoaded() {
+        if (live != null)
+            return;
+        live = new LinkedHashMap<>();
+        records = 0;
+        readRecords(snapshotFile, false);
+        records = readRecords(journalFile, true);
+        migrateLegacy();
+        tags = new HashMap<>();
+        for (Job.JobInfo info : live.values()) {
+            tag(info);
+        }
+        if (rewriteNeeded) {
+            compact();
+        }
+    }
+
+    /**
+     * @return how many records have been read.
+     */
+    private int readRecords(File file, boolean isJournal) {
+        if (!file.exists())
+            return 0;
+        int count = 0;
+        long valid = 0;
+        //string table size at valid
+        int validTable = 0;
+        JobInfoCodec.Decoder decoder = null;
+        DataInputStream in = null;
+        try {
+            BufferedInputStream buffered = new BufferedInputStream(new FileInputStream(file));
+            CountingInputStream counting = new CountingInputStream(buffered);
+            in = new DataInputStream(counting);
+            if (file.length() == 0)
+                return 0;
+            JobInfoCodec.readHeader(in);
+            decoder = new JobInfoCodec.Decoder();
+            valid = counting.count;
+            //records of an unfinished batch, applied at its end
+            LinkedHashMap<String, Job.JobInfo> batch = null;
+            while (true) {
+                byte op = in.readByte();
+                if (op == OP_BATCH_BEGIN && batch == null) {
+                    batch = new LinkedHashMap<>();
+                    continue;
+                }
+                if (op == OP_BATCH_END && batch != null) {
+                    apply(batch);
+                    batch = null;
+                    valid = counting.count;
+                    validTable = decoder.tableSize();
+                    continue;
+                }
+                String identity;
+                Job.JobInfo info = null;
+                if (op == OP_PUT) {
+                    info = decoder.read(in);
+                    identity = info.identity;
+                } else if (op == OP_REMOVE) {
+                    identity = decoder.readString(in);
+                } else {
+                    //zero filled or garbage tail, cut off from here
+                    throw new IOException("Unknown op " + op);
+                }
+                if (identity == null) {
+                    throw new IOException("Record without identity.");
+                }
+                count++;
+                if (batch != null) {
+                    batch.put(identity, info);
+                } else {
+                    apply(Collections.singletonMap(identity, info));
+                    valid = counting.count;
+                    validTable = decoder.tableSize();
+                }
+            }
+        } catch (EOFException ignore) {
+            //end of file, or the last record was not finished while process died
+        } catch (IOException e) {
+            Log.w(TAG, "Broken record in " + file.getName() + ", drop the rest.", e);
+        } finally {
+            closeQuietly(in);
+        }
+        if (decoder == null || (!isJournal && valid < file.length())) {
+            //not even a header, or a broken snapshot, write a clean one
+            rewriteNeeded = true;
+        } else if (isJournal && !rewriteNeeded) {
+            //cut the broken tail off, then keep appending to the same stream
+            if (valid < file.length() && !truncate(file, valid)) {
+                rewriteNeeded = true;
+            } else {
+                journalEncoder = decoder.continueWith(validTable);
+            }
+        }
+        return count;
+    }
+
+    //null value means removed
+    private void apply(Map<String, Job.JobInfo> records) {
+        for (Map.Entry<String, Job.JobInfo> entry : records.entrySet()) {
+            if (entry.getValue() != null) {
+                live.put(entry.getKey(), entry.getValue());
+            } else {
+                live.remove(entry.getKey());
+            }
+        }
+    }
+
+    private void migrateLegacy() {
+        if (!LegacyJobs.exist(legacyDirs))
+            return;
+        //files stay until the snapshot holding their jobs is written
+        legacyImported = true;
+        rewriteNeeded = true;
+        live.putAll(LegacyJobs.read(legacyDirs));
+    }
+
+    private void deleteLegacy() {
+        LegacyJobs.delete(legacyDirs);
+        legacyImported = false;
+    }
+
+    private void append(byte op, String identity, Job.JobInfo info) {
+        if (journalEncoder == null && journalFile.length() > 0) {
+            //leftover we can't append to, fold it into the snapshot first
+            compact();
+            if (journalFile.length() > 0) {
+                //compact failed, the record only lives in memory until next compaction
+                return;
+            }
+        }
+        try {
+            if (journal == null) {
+                File dir = journalFile.getParentFile();
+                if (!dir.exists()) {
+                    dir.mkdirs();
+                }
+                journal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journalFile, true)));
+                if (journalEncoder == null) {
+                    JobInfoCodec.writeHeader(journal);
+                    journalEncoder = new JobInfoCodec.Encoder();
+                }
+            }
+            if (batching && !batchOpened) {
+                journal.writeByte(OP_BATCH_BEGIN);
+                batchOpened = true;
+            }
+            writeRecord(journal, journalEncoder, op, identity, info);
+            records++;
+            if (batching)
+                return;
+            journal.flush();
+        } catch (IOException e) {
+            Log.w(TAG, "Append failed, rewrite the snapshot.", e);
+            compact();
+            return;
+        }
+        mayCompact();
+    }
+
+    private static void writeRecord(DataOutputStream out, JobInfoCodec.Encoder encoder, byte op,
+                                    String identity, Job.JobInfo info) throws IOException {
+        out.writeByte(op);
+        if (op == OP_PUT) {
+            encoder.write(out, info);
+        } else {
+            encoder.writeString(out, identity);
+        }
+    }
+
+    private void mayCompact() {
+        if (compactPending || records < MIN_COMPACT_RECORDS || records <= live.size())
+            return;
+        compactPending = true;
+        try {
+            compactor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    compactIfIdle();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            //shutting down, next load compacts it
+            compactPending = false;
+        }
+    }
+
+    private synchronized void compactIfIdle() {
+        compactPending = false;
+        //the end of current batch asks again
+        if (batching)
+            return;
+        compact();
+    }
+
+    /**
+     * Write all live jobs into a new snapshot, then start the journal over.
+     */
+    synchronized void compact() {
+        compactPending = false;
+        if (live == null)
+            return;
+        File dir = snapshotFile.getParentFile();
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        File temp = new File(snapshotFile.getPath() + TEMP_SUFFIX);
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            JobInfoCodec.writeHeader(out);
+            JobInfoCodec.Encoder encoder = new JobInfoCodec.Encoder();
+            for (Map.Entry<String, Job.JobInfo> entry : live.entrySet()) {
+                writeRecord(out, encoder, OP_PUT, entry.getKey(), entry.getValue());
+            }
+            out.flush();
+            out.close();
+            out = null;
+            if (!temp.renameTo(snapshotFile)) {
+                throw new IOException("Can not replace " + snapshotFile.getName());
+            }
+            closeJournal();
+            journalFile.delete();
+            journalEncoder = null;
+            records = 0;
+            rewriteNeeded = false;
+            //records after this start a new batch in the new journal
+            batchOpened = false;
+            if (legacyImported) {
+                deleteLegacy();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Compact failed, keep the journal.", e);
+            temp.delete();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private void closeJournal() {
+        closeQuietly(journal);
+        journal = null;
+    }
+
+    private static boolean truncate(File file, long length) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            raf.setLength(length);
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            closeQuietly(raf);
+        }
+    }
+
+    private static void closeQuietly(Closeable c) {
+        if (c == null)
+            return;
+        try {
+            c.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    private static final class CountingInputStream extends FilterInputStream {
+        long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = super.read(buffer, offset, length);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+}
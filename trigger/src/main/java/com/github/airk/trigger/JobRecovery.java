@@ -0,0 +1,123 @@
+/*
+ * Copyright 2015 Kevin Liu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.airk.trigger;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Turns persisted jobs back into {@link Job}s on the thread of a handler. Jobs are handed over in
+ * small batches, one message each, so other messages of the handler don't wait for the whole
+ * recovery. A recovery can be canceled from any thread.
+ * <p/>
+ * Records are decoded by the store in one sequential read, and actions are only created at the
+ * first trigger, so what is left per job is validating it and looking up shared conditions. That
+ * is too little to pay for handing batches to worker threads and back.
+ */
+final class JobRecovery implements Runnable {
+    static final int BATCH_SIZE = 16;
+
+    /**
+     * All called on the thread of the handler.
+     */
+    interface Callback {
+        void onRecovered(List<Job> jobs);
+
+        /**
+         * Called for the records can not be recovered any more.
+         */
+        void onDropped(Job.JobInfo info);
+
+        /**
+         * Called once after all other callbacks.
+         */
+        void onFinished(int recovered, int dropped, long costMillis);
+    }
+
+    private final Iterator<Job.JobInfo> infos;
+    private final ConditionRegistry registry;
+    private final Handler handler;
+    private final Callback callback;
+    private final long start = SystemClock.elapsedRealtime();
+    private int recovered = 0;
+    private int dropped = 0;
+    private boolean canceled = false; //guarded by this
+    private boolean finished = false; //guarded by this
+
+    private JobRecovery(Collection<Job.JobInfo> infos, ConditionRegistry registry, Handler handler,
+                        Callback callback) {
+        this.infos = infos.iterator();
+        this.registry = registry;
+        this.handler = handler;
+        this.callback = callback;
+    }
+
+    /**
+     * @return the recovery, its first batch is posted to the handler.
+     */
+    static JobRecovery start(Collection<Job.JobInfo> infos, ConditionRegistry registry, Handler handler,
+                             Callback callback) {
+        JobRecovery recovery = new JobRecovery(infos, registry, handler, callback);
+        handler.post(recovery);
+        return recovery;
+    }
+
+    /**
+     * No callback is called after this returns, a batch running on the handler thread finishes first.
+     *
+     * @return false if it has finished or been canceled already.
+     */
+    synchronized boolean cancel() {
+        if (finished || canceled)
+            return false;
+        canceled = true;
+        handler.removeCallbacks(this);
+        return true;
+    }
+
+    @Override
+    public synchronized void run() {
+        if (canceled)
+            return;
+        List<Job> jobs = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE && infos.hasNext(); i++) {
+            Job.JobInfo info = infos.next();
+            Job job = Job.isValidIdentity(info.identity) ? Job.createJobFromPersistInfo(info, registry) : null;
+            if (job != null) {
+                jobs.add(job);
+            } else {
+                dropped++;
+                callback.onDropped(info);
+            }
+        }
+        recovered += jobs.size();
+        if (!jobs.isEmpty()) {
+            callback.onRecovered(jobs);
+        }
+        if (infos.hasNext()) {
+            handler.post(this);
+        } else {
+            finished = true;
+            callback.onFinished(recovered, dropped, SystemClock.elapsedRealtime() - start);
+        }
+    }
+}
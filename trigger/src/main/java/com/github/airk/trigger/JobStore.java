@@ -0,0 +1,57 @@
+/*
+ * Copyright 2015 Kevin Liu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.airk.trigger;
+
+import java.util.Collection;
+
+/**
+ * Where {@link TriggerLoop} keeps persist-able jobs. Every persist-able job can be recovered after
+ * service restarting, and the ones with {@code persistAfterReboot} after device rebooting as well.
+ * <p/>
+ * Implementations are called from several threads and take care of their own locking.
+ */
+interface JobStore {
+    /**
+     * @param rebootOnly only the jobs which should be recovered after device rebooting
+     */
+    Collection<Job.JobInfo> load(boolean rebootOnly);
+
+    /**
+     * Add or overwrite the job with the same identity.
+     */
+    void put(Job.JobInfo info);
+
+    void remove(String identity);
+
+    /**
+     * Remove all jobs with exactly this tag.
+     */
+    void removeWithTag(String tag);
+
+    void clear();
+
+    /**
+     * Run edits made through this store as one batch, they are committed together and
+     * recovered all or nothing.
+     */
+    void batch(Runnable edits);
+
+    /**
+     * Release resources, the store is not used any more.
+     */
+    void close();
+}
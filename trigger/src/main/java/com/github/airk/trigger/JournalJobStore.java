@@ -0,0 +1,88 @@
+/*
+ * Copyright 2015 Kevin Liu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.airk.trigger;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * {@link JobStore} on a {@link JobJournal} in the app's files directory, the default one. Every
+ * job is written once, {@code persistAfterReboot} in its record tells whether it is recovered
+ * after device rebooting too.
+ */
+final class JournalJobStore implements JobStore {
+    private static final String JOB_JOURNAL_DIR = "job_journal";
+    private static final String JOBS_JOURNAL = "jobs";
+
+    private final JobJournal journal;
+
+    JournalJobStore(File filesDir, Executor compactor) {
+        journal = new JobJournal(new File(filesDir, JOB_JOURNAL_DIR), JOBS_JOURNAL, compactor,
+                LegacyJobs.dirsIn(filesDir));
+    }
+
+    @Override
+    public Collection<Job.JobInfo> load(boolean rebootOnly) {
+        List<Job.JobInfo> ret = new ArrayList<>();
+        for (Job.JobInfo info : journal.load().values()) {
+            if (!rebootOnly || info.persistAfterReboot) {
+                ret.add(info);
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public void put(Job.JobInfo info) {
+        journal.put(info);
+    }
+
+    @Override
+    public void remove(String identity) {
+        journal.remove(identity);
+    }
+
+    @Override
+    public void removeWithTag(String tag) {
+        if (tag == null)
+            return;
+        journal.removeWithTag(tag);
+    }
+
+    @Override
+    public void clear() {
+        journal.clear();
+    }
+
+    @Override
+    public void batch(Runnable edits) {
+        journal.beginBatch();
+        try {
+            edits.run();
+        } finally {
+            journal.endBatch();
+        }
+    }
+
+    @Override
+    public void close() {
+        journal.close();
+    }
+}
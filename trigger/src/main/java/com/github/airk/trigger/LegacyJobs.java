@@ -0,0 +1,86 @@
+/*
+ * Copyright 2015 Kevin Liu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.airk.trigger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Jobs saved as one JSON file each by older versions. A store imports them the first time it
+ * loads, and deletes the files only after the jobs are safely in the store.
+ */
+final class LegacyJobs {
+    private static final String JOB_PERSIST_DIR = "job_persist";
+    private static final String JOB_BACKUP_DIR = "job_backup";
+
+    private LegacyJobs() {
+    }
+
+    /**
+     * @return legacy directories in the files directory, jobs in job_persist are in job_backup as
+     * well, importing both only fills the gaps.
+     */
+    static File[] dirsIn(File filesDir) {
+        return new File[]{new File(filesDir, JOB_BACKUP_DIR), new File(filesDir, JOB_PERSIST_DIR)};
+    }
+
+    static boolean exist(File... dirs) {
+        for (File dir : dirs) {
+            if (dir.isDirectory())
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return jobs in the directories keyed by identity, broken files are skipped.
+     */
+    static Map<String, Job.JobInfo> read(File... dirs) {
+        LinkedHashMap<String, Job.JobInfo> jobs = new LinkedHashMap<>();
+        for (File dir : dirs) {
+            File[] files = dir.listFiles();
+            if (files == null)
+                continue;
+            for (File f : files) {
+                try {
+                    Job.JobInfo info = JobInfoCodec.readJson(f);
+                    if (info != null && info.identity != null) {
+                        jobs.put(info.identity, info);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return jobs;
+    }
+
+    static void delete(File... dirs) {
+        for (File dir : dirs) {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    f.delete();
+                }
+            }
+            dir.delete();
+        }
+    }
+}
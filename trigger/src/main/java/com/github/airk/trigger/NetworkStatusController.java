@@ -78,7 +78,7 @@ final class NetworkStatusController implements StatusController {
         @Override
         public void onReceive(Context context, Intent intent) {
             parseStatus(intent);
-            context.startService(TriggerLoop.deviceStatusChanged(context, Job.NETWORK_TYPE_KEY));
+            TriggerLoop.reportStatusChanged(context, Job.NETWORK_TYPE_KEY);
         }
     }
 }
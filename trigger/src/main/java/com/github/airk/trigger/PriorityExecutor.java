@@ -0,0 +1,84 @@
+/*
+ * Copyright 2015 Kevin Liu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.airk.trigger;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed thread pool whose waiting tasks run in priority order instead of FIFO. A task is ordered
+ * by its enqueue time minus {@link #AGING_STEP} per priority level, so a task which has waited
+ * long enough overtakes newer ones with higher priority and nothing starves.
+ */
+final class PriorityExecutor extends ThreadPoolExecutor {
+    static final long AGING_STEP = 1000L; //millis
+
+    private static final AtomicLong sequence = new AtomicLong();
+
+    PriorityExecutor(int poolSize, ThreadFactory factory) {
+        super(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>(), factory);
+    }
+
+    void execute(Runnable command, int priority) {
+        super.execute(new Task(command, priority));
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        if (command instanceof Task) {
+            super.execute(command);
+        } else {
+            execute(command, Job.PRIORITY_DEFAULT);
+        }
+    }
+
+    private static final class Task implements Runnable, Comparable<Task> {
+        final Runnable command;
+        final long key;
+        //FIFO among the same key
+        final long seq;
+
+        Task(Runnable command, int priority) {
+            this.command = command;
+            this.key = SystemClock.uptimeMillis() - priority * AGING_STEP;
+            this.seq = sequence.getAndIncrement();
+        }
+
+        @Override
+        public void run() {
+            //like submit() did, a failed action doesn't take the worker down
+            try {
+                command.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+
+        @Override
+        public int compareTo(Task another) {
+            if (key != another.key) {
+                return key < another.key ? -1 : 1;
+            }
+            return seq < another.seq ? -1 : (seq == another.seq ? 0 : 1);
+        }
+    }
+}
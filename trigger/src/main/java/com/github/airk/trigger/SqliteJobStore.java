@@ -0,0 +1,166 @@
+/*
+ * Copyright 2015 Kevin Liu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.airk.trigger;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link JobStore} on SQLite. Tag and reboot persisting are indexed columns, so removing jobs by tag
+ * and loading jobs after device rebooting only touch the matched rows. Jobs themselves are kept as
+ * {@link JobInfoCodec} blobs.
+ */
+final class SqliteJobStore extends SQLiteOpenHelper implements JobStore {
+    private static final String TAG = "SqliteJobStore";
+    private static final String DB_NAME = "trigger_jobs.db";
+    private static final int DB_VERSION = 1;
+    private static final String TABLE = "jobs";
+    private static final String COL_IDENTITY = "identity";
+    private static final String COL_TAG = "tag";
+    private static final String COL_PERSIST = "persist_after_reboot";
+    private static final String COL_INFO = "info";
+
+    private final File[] legacyDirs;
+    private boolean legacyChecked = false; //guarded by this
+
+    SqliteJobStore(Context context) {
+        super(context, DB_NAME, null, DB_VERSION);
+        legacyDirs = LegacyJobs.dirsIn(context.getFilesDir());
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE + " ("
+                + COL_IDENTITY + " TEXT PRIMARY KEY, "
+                + COL_TAG + " TEXT, "
+                + COL_PERSIST + " INTEGER NOT NULL, "
+                + COL_INFO + " BLOB NOT NULL)");
+        db.execSQL("CREATE INDEX " + TABLE + "_" + COL_TAG + " ON " + TABLE + " (" + COL_TAG + ")");
+        db.execSQL("CREATE INDEX " + TABLE + "_" + COL_PERSIST + " ON " + TABLE + " (" + COL_PERSIST + ")");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+    }
+
+    @Override
+    public Collection<Job.JobInfo> load(boolean rebootOnly) {
+        migrateLegacy();
+        SQLiteDatabase db = getWritableDatabase();
+        List<Job.JobInfo> ret = new ArrayList<>();
+        List<String> broken = new ArrayList<>();
+        Cursor cursor = db.query(TABLE, new String[]{COL_IDENTITY, COL_INFO},
+                rebootOnly ? COL_PERSIST + " = 1" : null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                try {
+                    ret.add(JobInfoCodec.fromBytes(cursor.getBlob(1)));
+                } catch (IOException e) {
+                    Log.w(TAG, "Broken job " + cursor.getString(0) + ", drop it.", e);
+                    broken.add(cursor.getString(0));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        for (String identity : broken) {
+            remove(identity);
+        }
+        return ret;
+    }
+
+    //import jobs of older versions once, the files go after the rows are committed
+    private synchronized void migrateLegacy() {
+        if (legacyChecked)
+            return;
+        legacyChecked = true;
+        if (!LegacyJobs.exist(legacyDirs))
+            return;
+        final Map<String, Job.JobInfo> jobs = LegacyJobs.read(legacyDirs);
+        try {
+            batch(new Runnable() {
+                @Override
+                public void run() {
+                    for (Job.JobInfo info : jobs.values()) {
+                        put(info);
+                    }
+                }
+            });
+        } catch (SQLException e) {
+            Log.w(TAG, "Import failed, keep the legacy jobs for next time.", e);
+            legacyChecked = false;
+            return;
+        }
+        LegacyJobs.delete(legacyDirs);
+    }
+
+    @Override
+    public void put(Job.JobInfo info) {
+        ContentValues values = new ContentValues();
+        try {
+            values.put(COL_INFO, JobInfoCodec.toBytes(info));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        values.put(COL_IDENTITY, info.identity);
+        values.put(COL_TAG, info.tag);
+        values.put(COL_PERSIST, info.persistAfterReboot ? 1 : 0);
+        getWritableDatabase().insertWithOnConflict(TABLE, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    @Override
+    public void remove(String identity) {
+        getWritableDatabase().delete(TABLE, COL_IDENTITY + " = ?", new String[]{identity});
+    }
+
+    @Override
+    public void removeWithTag(String tag) {
+        if (tag == null)
+            return;
+        getWritableDatabase().delete(TABLE, COL_TAG + " = ?", new String[]{tag});
+    }
+
+    @Override
+    public void clear() {
+        getWritableDatabase().delete(TABLE, null, null);
+    }
+
+    @Override
+    public void batch(Runnable edits) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            edits.run();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2015 Kevin Liu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.airk.trigger;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Tag to job identities index. Tags are split by {@link #SEPARATOR} into a trie, so a whole
+ * group like "sync/photos" can be looked up at once, it covers "sync/photos/album42" but not
+ * "sync/photosAlbum".
+ */
+final class TagIndex {
+    static final char SEPARATOR = '/';
+
+    private final Node root = new Node(null, null);
+
+    synchronized void add(String tag, String identity) {
+        if (tag == null)
+            return;
+        Node node = root;
+        for (String segment : split(tag)) {
+            Node child = node.children.get(segment);
+            if (child == null) {
+                child = new Node(node, segment);
+                node.children.put(segment, child);
+            }
+            node = child;
+        }
+        node.identities.add(identity);
+    }
+
+    synchronized void remove(String tag, String identity) {
+        Node node = find(tag);
+        if (node == null)
+            return;
+        node.identities.remove(identity);
+        //prune empty branch
+        while (node.parent != null && node.identities.isEmpty() && node.children.isEmpty()) {
+            node.parent.children.remove(node.segment);
+            node = node.parent;
+        }
+    }
+
+    /**
+     * @return identities of jobs with exactly this tag.
+     */
+    synchronized List<String> get(String tag) {
+        Node node = find(tag);
+        if (node == null)
+            return Collections.emptyList();
+        return new ArrayList<>(node.identities);
+    }
+
+    /**
+     * @return identities of jobs with this tag or any tag under it.
+     */
+    synchronized List<String> withPrefix(String prefix) {
+        Node node = find(prefix);
+        if (node == null)
+            return Collections.emptyList();
+        List<String> ret = new ArrayList<>();
+        ArrayDeque<Node> queue = new ArrayDeque<>();
+        queue.add(node);
+        while (!queue.isEmpty()) {
+            Node n = queue.poll();
+            ret.addAll(n.identities);
+            queue.addAll(n.children.values());
+        }
+        return ret;
+    }
+
+    synchronized void clear() {
+        root.children.clear();
+        root.identities.clear();
+    }
+
+    private Node find(String tag) {
+        if (tag == null)
+            return null;
+        Node node = root;
+        for (String segment : split(tag)) {
+            node = node.children.get(segment);
+            if (node == null)
+                return null;
+        }
+        return node;
+    }
+
+    private static List<String> split(String tag) {
+        List<String> segments = new ArrayList<>();
+        int start = 0;
+        int end;
+        while ((end = tag.indexOf(SEPARATOR, start)) != -1) {
+            segments.add(tag.substring(start, end));
+            start = end + 1;
+        }
+        segments.add(tag.substring(start));
+        return segments;
+    }
+
+    private static final class Node {
+        final Node parent;
+        final String segment;
+        final HashMap<String, Node> children = new HashMap<>();
+        final HashSet<String> identities = new HashSet<>();
+
+        Node(Node parent, String segment) {
+            this.parent = parent;
+            this.segment = segment;
+        }
+    }
+}
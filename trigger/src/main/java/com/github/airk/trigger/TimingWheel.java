@@ -0,0 +1,135 @@
+/*
+ * Copyright 2015 Kevin Liu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.airk.trigger;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Hashed timing wheel for short deadlines. Adding and cancelling are O(1), one recurring tick
+ * on the given handler fires all due jobs together, and the tick stops while the wheel is empty.
+ */
+final class TimingWheel {
+    static final long TICK = 100L; //millis
+    static final int WHEEL_SIZE = 128;
+
+    interface Callback {
+        void onExpired(List<Job> jobs);
+    }
+
+    private final Handler handler;
+    private final Callback callback;
+    private final ArrayList<HashSet<Timeout>> slots;
+    private final Runnable tickRunnable = new Runnable() {
+        @Override
+        public void run() {
+            tick();
+        }
+    };
+    private int size = 0;
+    private long cursor = 0L;
+    private long startTime = 0L;
+    private boolean ticking = false;
+
+    TimingWheel(Handler handler, Callback callback) {
+        this.handler = handler;
+        this.callback = callback;
+        slots = new ArrayList<>(WHEEL_SIZE);
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            slots.add(new HashSet<Timeout>());
+        }
+    }
+
+    /**
+     * @return the handle for {@link #cancel(Timeout)}.
+     */
+    synchronized Timeout schedule(Job job, long delay) {
+        if (!ticking) {
+            ticking = true;
+            cursor = 0L;
+            startTime = SystemClock.uptimeMillis();
+            handler.postAtTime(tickRunnable, startTime + TICK);
+        }
+        //elapsed ticks since start plus the ticks to wait, never fire before the delay passes
+        long elapsed = SystemClock.uptimeMillis() - startTime;
+        long ticks = (elapsed + delay + TICK - 1) / TICK;
+        if (ticks <= cursor) {
+            ticks = cursor + 1;
+        }
+        Timeout timeout = new Timeout(job, ticks);
+        slots.get((int) (ticks % WHEEL_SIZE)).add(timeout);
+        size++;
+        return timeout;
+    }
+
+    synchronized void cancel(Timeout timeout) {
+        if (slots.get((int) (timeout.tick % WHEEL_SIZE)).remove(timeout)) {
+            size--;
+        }
+    }
+
+    synchronized void clear() {
+        for (HashSet<Timeout> slot : slots) {
+            slot.clear();
+        }
+        size = 0;
+        ticking = false;
+        handler.removeCallbacks(tickRunnable);
+    }
+
+    private void tick() {
+        List<Job> expired = new ArrayList<>();
+        synchronized (this) {
+            if (!ticking)
+                return;
+            cursor++;
+            Iterator<Timeout> it = slots.get((int) (cursor % WHEEL_SIZE)).iterator();
+            while (it.hasNext()) {
+                Timeout timeout = it.next();
+                //others in the same slot wait for later rounds
+                if (timeout.tick <= cursor) {
+                    it.remove();
+                    size--;
+                    expired.add(timeout.job);
+                }
+            }
+            if (size == 0) {
+                ticking = false;
+            } else {
+                handler.postAtTime(tickRunnable, startTime + (cursor + 1) * TICK);
+            }
+        }
+        if (!expired.isEmpty()) {
+            callback.onExpired(expired);
+        }
+    }
+
+    static final class Timeout {
+        final Job job;
+        final long tick;
+
+        private Timeout(Job job, long tick) {
+            this.job = job;
+            this.tick = tick;
+        }
+    }
+}
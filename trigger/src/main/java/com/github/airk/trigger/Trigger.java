@@ -23,6 +23,7 @@ import android.os.IBinder;
 import android.util.Log;
 
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 
 /**
@@ -37,11 +38,14 @@ public class Trigger {
     private TriggerLoop.TriggerBinder triggerBinder;
     private Context appContext;
     private HashMap<String, Job> pendingList;
+    private HashMap<String, ExistingJobPolicy> pendingPolicies;
     private boolean stopAndResetPending = false;
+    private long batchDelayPending = -1L;
     private Connector connector;
 
     private Trigger(Context context) {
         pendingList = new HashMap<>();
+        pendingPolicies = new HashMap<>();
         connector = new Connector();
         appContext = context.getApplicationContext();
         appContext.bindService(TriggerLoop.newIntent(appContext), connector, Context.BIND_AUTO_CREATE);
@@ -65,11 +69,31 @@ public class Trigger {
      * @throw {@link IllegalArgumentException} while this Job is not complete.
      */
     public void schedule(Job job) {
+        scheduleInternal(job, null);
+    }
+
+    /**
+     * Schedule a job, and decide what to do if a job with the same content is already waiting.
+     * Without a policy, persist-after-reboot jobs are kept unique and others are appended.
+     *
+     * @param job    {@link Job} with action and maybe one or more extra conditions.
+     * @param policy {@link ExistingJobPolicy} for the job with the same content.
+     * @throw {@link IllegalArgumentException} while this Job is not complete.
+     */
+    public void schedule(Job job, ExistingJobPolicy policy) {
+        if (policy == null) {
+            throw new NullPointerException("Null policy can not accept!");
+        }
+        scheduleInternal(job, policy);
+    }
+
+    private void scheduleInternal(Job job, ExistingJobPolicy policy) {
         ensureJobRight(job);
         if (triggerBinder == null) {
             pendingList.put(job.jobInfo.identity, job);
+            pendingPolicies.put(job.jobInfo.identity, policy);
         } else {
-            triggerBinder.schedule(job);
+            triggerBinder.schedule(job, policy);
         }
     }
 
@@ -108,13 +132,41 @@ public class Trigger {
      * @param tag Given tag
      */
     public void cancel(String tag) {
-        if (triggerBinder == null && pendingList.containsKey(tag)) {
-            pendingList.remove(tag);
+        if (triggerBinder == null) {
+            removePending(tag, false);
         } else {
             triggerBinder.cancel(tag);
         }
     }
 
+    /**
+     * Cancel a group of Jobs. Tags are treated as paths separated by '/', cancel "sync/photos"
+     * will cancel jobs tagged "sync/photos" and "sync/photos/album42", but not "sync/photosAlbum".
+     *
+     * @param tagPrefix Given tag group
+     */
+    public void cancelGroup(String tagPrefix) {
+        if (triggerBinder == null) {
+            removePending(tagPrefix, true);
+        } else {
+            triggerBinder.cancelGroup(tagPrefix);
+        }
+    }
+
+    private void removePending(String tag, boolean group) {
+        Iterator<Map.Entry<String, Job>> it = pendingList.entrySet().iterator();
+        while (it.hasNext()) {
+            Job job = it.next().getValue();
+            String jobTag = job.jobInfo.tag;
+            if (jobTag == null)
+                continue;
+            if (jobTag.equals(tag) || (group && jobTag.startsWith(tag + TagIndex.SEPARATOR))) {
+                it.remove();
+                pendingPolicies.remove(job.jobInfo.identity);
+            }
+        }
+    }
+
     /**
      * Don't accept any Job from then. Not effect the jobs already in pending list.
      */
@@ -135,6 +187,24 @@ public class Trigger {
         }
     }
 
+    /**
+     * Condition and device status changes which come in a burst are merged and checked together,
+     * this is the max time a change may wait for the others. Default is
+     * {@value TriggerLoop#DEFAULT_MAX_BATCH_DELAY} ms.
+     *
+     * @param delayInMs max batching delay in millis, 0 means changes are never held back.
+     */
+    public void setMaxBatchingDelay(long delayInMs) {
+        if (delayInMs < 0) {
+            throw new IllegalArgumentException("Batching delay can not be negative.");
+        }
+        if (triggerBinder != null) {
+            triggerBinder.setMaxBatchDelay(delayInMs);
+        } else {
+            batchDelayPending = delayInMs;
+        }
+    }
+
     class Connector implements ServiceConnection {
 
         @Override
@@ -144,12 +214,17 @@ public class Trigger {
                 triggerBinder.stopAndReset();
                 stopAndResetPending = false;
             }
+            if (batchDelayPending != -1L) {
+                triggerBinder.setMaxBatchDelay(batchDelayPending);
+                batchDelayPending = -1L;
+            }
             if (pendingList != null) {
                 for (Map.Entry<String, Job> entry : pendingList.entrySet()) {
                     Job job = entry.getValue();
-                    triggerBinder.schedule(job);
+                    triggerBinder.schedule(job, pendingPolicies.get(entry.getKey()));
                 }
                 pendingList.clear();
+                pendingPolicies.clear();
             }
         }
 
@@ -20,10 +20,12 @@ import android.app.AlarmManager;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.PackageManager;
+import android.content.pm.ServiceInfo;
 import android.os.Binder;
 import android.os.Build;
 import android.os.Handler;
@@ -34,13 +36,22 @@ import android.os.Message;
 import android.os.PowerManager;
 import android.os.SystemClock;
 import android.util.Log;
+import android.util.SparseArray;
 
-import java.io.File;
-import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
@@ -55,25 +66,54 @@ public final class TriggerLoop extends Service {
     static final String STATUS_CHANGED = "status_changed";
     static final int PROTOCOL_CODE = 0x991;
     static final int THREAD_POOL_SIZE = Runtime.getRuntime().availableProcessors() * 2 + 1;
+    static final long DEFAULT_MAX_BATCH_DELAY = 100L;
 
     private static final String TAG = "TriggerLoop";
     private static final String DEADLINE_BROADCAST = "com.github.airk.trigger.broadcast.deadline";
-    private static final String JOB_PERSIST_DIR = "job_persist";
-    private static final String JOB_BACKUP_DIR = "job_backup";
+    //meta-data of this service in manifest, chooses the job store
+    private static final String META_JOB_STORE = "com.github.airk.trigger.JOB_STORE";
+    private static final String JOB_STORE_SQLITE = "sqlite";
+
+    //running and started instance, signals from this process are handed to it directly
+    private static volatile TriggerLoop sStarted;
 
     private ConcurrentHashMap<String, Job> jobSet;
-    private ConcurrentHashMap<String, BroadcastReceiver> receivers;
+    //one receiver for all conditions, dispatches broadcasts by action
+    private ConditionDispatcher dispatcher;
+    //condition identity -> how many job conditions use it, guarded by dispatcher
+    private HashMap<String, Integer> receiverRefs;
+    //obtained and released under dispatcher together with receiverRefs
+    private ConditionRegistry conditions;
+    //interned condition id -> identities of the jobs waiting on it, guarded by itself
+    private SparseArray<Set<String>> condIndex;
+    private TagIndex tagIndex;
+    //content hash -> identities of the jobs with that hash, guarded by itself
+    private SparseArray<Set<String>> contentIndex;
     private ConcurrentHashMap<String, Long> jobHappens;
     private TriggerBinder binder;
     private CheckHandler checker;
-    private ExecutorService executor;
+    //background actions by priority
+    private PriorityExecutor executor;
     private Handler mainHandler;
     private AlarmManager alarmManager;
-    private Handler shortDeadlineHandler;
+    //jobs with deadline ordered by it, only the earliest one holds the alarm, guarded by itself
+    private TreeSet<Job> deadlines;
+    private PendingIntent deadlineAlarm;
+    private long armedDeadline = -1L; //guarded by deadlines
+    //deadlines in 1 minute don't bother the alarm
+    private TimingWheel deadlineWheel;
     private DeadlineCheck deadlineCheck;
     private PowerManager.WakeLock wakeLock;
     private DeviceStatus sDeviceStatus;
+    private boolean destroyed = false; //guarded by this
+    //binder calls arrived before recovery is done, replayed in order, guarded by itself
+    private ArrayList<Runnable> pendingCalls;
+    private boolean ready = false; //guarded by pendingCalls
+    private CountDownLatch readyLatch;
     private HandlerThread handlerThread;
+    //writes go to the store on ioExecutor
+    private AsyncJobStore jobStore;
+    private ExecutorService ioExecutor;
 
     static Intent newIntent(Context context) {
         Intent intent = new Intent(context, TriggerLoop.class);
@@ -99,19 +139,52 @@ public final class TriggerLoop extends Service {
         return data;
     }
 
+    /**
+     * Report condition status, go through {@link #startService(Intent)} only while the service
+     * is not running in this process.
+     */
+    static void reportCondition(Context context, ConditionDesc condition) {
+        TriggerLoop loop = sStarted;
+        if (loop != null) {
+            loop.checker.checkSatisfy(condition);
+        } else {
+            context.startService(newIntent(context, condition));
+        }
+    }
+
+    /**
+     * Report device status changed, go through {@link #startService(Intent)} only while the
+     * service is not running in this process.
+     */
+    static void reportStatusChanged(Context context, String which) {
+        TriggerLoop loop = sStarted;
+        if (loop != null) {
+            loop.checker.checkStatusChanged(which);
+        } else {
+            context.startService(deviceStatusChanged(context, which));
+        }
+    }
+
     @Override
     public void onCreate() {
         super.onCreate();
         jobSet = new ConcurrentHashMap<>();
-        receivers = new ConcurrentHashMap<>();
+        dispatcher = new ConditionDispatcher();
+        receiverRefs = new HashMap<>();
+        conditions = new ConditionRegistry();
+        condIndex = new SparseArray<>();
+        tagIndex = new TagIndex();
+        contentIndex = new SparseArray<>();
         jobHappens = new ConcurrentHashMap<>();
         binder = new TriggerBinder();
-        executor = Executors.newFixedThreadPool(THREAD_POOL_SIZE, new TriggerWorkerFactory());
+        executor = new PriorityExecutor(THREAD_POOL_SIZE, new TriggerWorkerFactory());
         mainHandler = new Handler(Looper.getMainLooper());
         alarmManager = (AlarmManager) getSystemService(ALARM_SERVICE);
-        shortDeadlineHandler = new Handler();
+        deadlines = new TreeSet<>(new DeadlineComparator());
+        deadlineAlarm = PendingIntent.getBroadcast(this, 0, new Intent(DEADLINE_BROADCAST), 0);
         deadlineCheck = new DeadlineCheck();
-        sDeviceStatus = DeviceStatus.get(this);
+        pendingCalls = new ArrayList<>();
+        readyLatch = new CountDownLatch(1);
         registerReceiver(deadlineCheck, new IntentFilter(DEADLINE_BROADCAST));
         PowerManager pm = (PowerManager) getSystemService(POWER_SERVICE);
         int granted = checkCallingOrSelfPermission("android.permission.WAKE_LOCK");
@@ -123,74 +196,136 @@ public final class TriggerLoop extends Service {
         handlerThread = new HandlerThread("Trigger-HandlerThread");
         handlerThread.start();
         checker = new CheckHandler(handlerThread.getLooper());
-        mayRecoverJobsFromFile();
+        ioExecutor = Executors.newSingleThreadExecutor(new TriggerWorkerFactory());
+        jobStore = new AsyncJobStore(openJobStore(), ioExecutor);
+        deadlineWheel = new TimingWheel(checker, new TimingWheel.Callback() {
+            @Override
+            public void onExpired(List<Job> jobs) {
+                checker.fireDeadlines(jobs);
+            }
+        });
+        //device status and recovery may take a while, keep them off the main thread
+        checker.post(new Runnable() {
+            @Override
+            public void run() {
+                startUp();
+            }
+        });
     }
 
-    private void mayRecoverJobsFromFile() {
-        File recoverDir = new File(getFilesDir(), JOB_BACKUP_DIR);
-        if (!recoverDir.exists())
-            return;
-        if (recoverDir.listFiles() == null)
-            return;
-        for (File file : recoverDir.listFiles()) {
-            Job job = null;
-            try {
-                job = Job.createJobFromPersistInfo(Job.JobInfo.readFromFile(file));
-            } catch (IOException e) {
-                e.printStackTrace();
+    private void startUp() {
+        synchronized (this) {
+            if (destroyed)
+                return;
+            sDeviceStatus = DeviceStatus.get(this);
+        }
+        checker.recoverJobs(false, new Runnable() {
+            @Override
+            public void run() {
+                onReady();
+                checker.onStartedUp();
             }
-            file.delete();
-            if (job != null) {
-                addJob(job, true);
+        });
+    }
+
+    private void onReady() {
+        while (true) {
+            List<Runnable> calls;
+            synchronized (pendingCalls) {
+                if (pendingCalls.isEmpty()) {
+                    ready = true;
+                    readyLatch.countDown();
+                    return;
+                }
+                calls = new ArrayList<>(pendingCalls);
+                pendingCalls.clear();
+            }
+            for (Runnable call : calls) {
+                call.run();
             }
         }
     }
 
-    private void tryCreateBackup(Job job) {
-        if (!job.canBePersist)
-            return;
-        File recoverDir = new File(getFilesDir(), JOB_BACKUP_DIR);
-        if (!recoverDir.exists()) {
-            recoverDir.mkdirs();
+    private boolean isReady() {
+        synchronized (pendingCalls) {
+            return ready;
+        }
+    }
+
+    /**
+     * Run the binder call now, or queue it until recovery is done.
+     */
+    private void whenReady(Runnable call) {
+        synchronized (pendingCalls) {
+            if (!ready) {
+                pendingCalls.add(call);
+                return;
+            }
         }
+        call.run();
+    }
+
+    private JobStore openJobStore() {
+        String store = null;
         try {
-            job.jobInfo.writeToFile(recoverDir);
-        } catch (IOException e) {
+            ServiceInfo info = getPackageManager().getServiceInfo(new ComponentName(this, TriggerLoop.class),
+                    PackageManager.GET_META_DATA);
+            if (info.metaData != null) {
+                store = info.metaData.getString(META_JOB_STORE);
+            }
+        } catch (PackageManager.NameNotFoundException e) {
             e.printStackTrace();
         }
-        //try to persist job that need valid after reboot
-        if (!job.jobInfo.persistAfterReboot)
-            return;
-        final File dir = new File(getFilesDir(), JOB_PERSIST_DIR);
-        if (!dir.exists()) {
-            dir.mkdirs();
-        }
-        try {
-            job.jobInfo.writeToFile(dir);
-        } catch (IOException ignore) {
+        if (JOB_STORE_SQLITE.equals(store)) {
+            return new SqliteJobStore(this);
         }
+        return new JournalJobStore(getFilesDir(), ioExecutor);
     }
 
-    private void deleteBackup(Job job) {
-        File recoverDir = new File(getFilesDir(), JOB_BACKUP_DIR);
-        if (!recoverDir.exists())
-            return;
-        job.jobInfo.tryDelete(recoverDir);
-        final File dir = new File(getFilesDir(), JOB_PERSIST_DIR);
-        if (!dir.exists()) {
+    private void tryCreateBackup(Job job) {
+        if (!job.canBePersist)
             return;
-        }
-        if (!job.jobInfo.persistAfterReboot)
+        jobStore.put(job.jobInfo);
+    }
+
+    private void deleteBackup(Job job) {
+        if (!job.canBePersist)
             return;
-        job.jobInfo.tryDelete(dir);
+        jobStore.remove(job.jobInfo.identity);
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
-        sDeviceStatus.onDestroy();
-        handlerThread.quit();
+        sStarted = null;
+        synchronized (this) {
+            destroyed = true;
+            if (sDeviceStatus != null) {
+                sDeviceStatus.onDestroy();
+            }
+        }
+        //drops what is queued, recoveries in progress give the wake lock back
+        checker.cleanup();
+        if (Build.VERSION.SDK_INT >= 18) {
+            handlerThread.quitSafely();
+        } else {
+            handlerThread.quit();
+        }
+        //the message in progress may still write to the store
+        try {
+            handlerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        //startup may never run now, don't keep anyone waiting for it
+        readyLatch.countDown();
         unregisterReceiver(deadlineCheck);
+        //late binder calls can't reach the store after this, its last commit runs before shutdown
+        jobStore.close();
+        ioExecutor.shutdown();
+        synchronized (dispatcher) {
+            dispatcher.clear();
+        }
     }
 
     private void tryAcquireLock() {
@@ -206,43 +341,43 @@ public final class TriggerLoop extends Service {
     }
 
     void addJob(Job job, boolean mayTrigger) {
+        addJob(job, mayTrigger, null);
+    }
+
+    /**
+     * @param policy null means the default one, persist-after-reboot jobs are never duplicated
+     *               and others are always appended.
+     */
+    void addJob(Job job, boolean mayTrigger, ExistingJobPolicy policy) {
         if (job == null)
             return;
         if (jobSet.containsKey(job.jobInfo.identity))
             return;
+        if (policy == null) {
+            policy = job.jobInfo.persistAfterReboot ? ExistingJobPolicy.KEEP : ExistingJobPolicy.APPEND;
+        }
         //avoid duplicate job
-        if (job.jobInfo.persistAfterReboot) {
-            for (String jk : jobSet.keySet()) {
-                Job existJob = jobSet.get(jk);
-                if (existJob.equals(job))
+        if (policy != ExistingJobPolicy.APPEND) {
+            List<String> existing = jobsWithSameContent(job);
+            if (!existing.isEmpty()) {
+                if (policy == ExistingJobPolicy.KEEP)
                     return;
+                for (String k : existing) {
+                    removeOne(k);
+                }
             }
         }
         jobSet.put(job.jobInfo.identity, job);
+        indexJob(job);
+        tagIndex.add(job.jobInfo.tag, job.jobInfo.identity);
         tryCreateBackup(job);
         //receiver handle
-        for (Condition c : job.exConds) {
-            if (!receivers.containsKey(c.getIdentify())) {
-                IntentFilter filter = new IntentFilter();
-                for (String act : c.getAction()) {
-                    filter.addAction(act);
-                }
-                ReceiverInner rec = new ReceiverInner(c);
-                registerReceiver(rec, filter);
-                receivers.put(c.getIdentify(), rec);
-            }
-        }
+        retainReceivers(job);
         //can it happen now?
         if (mayTrigger) {
-            if (job.condSatisfied.containsKey(Job.CHARGING_KEY)) {
-                job.condSatisfied.put(Job.CHARGING_KEY, DeviceStatus.chargingConstraintSatisfied.get());
-            }
-            if (job.condSatisfied.containsKey(Job.NETWORK_TYPE_KEY)) {
-                job.condSatisfied.put(Job.NETWORK_TYPE_KEY, DeviceStatus.networkTypeSatisfied(job.jobInfo.networkType));
-            }
-            if (job.condSatisfied.containsKey(Job.IDLE_DEVICE_KEY)) {
-                job.condSatisfied.put(Job.IDLE_DEVICE_KEY, DeviceStatus.idleConstraintSatisfied.get());
-            }
+            job.setSatisfied(ConditionKeys.CHARGING, DeviceStatus.chargingConstraintSatisfied.get());
+            job.setSatisfied(ConditionKeys.NETWORK_TYPE, DeviceStatus.networkTypeSatisfied(job.jobInfo.networkType));
+            job.setSatisfied(ConditionKeys.IDLE_DEVICE, DeviceStatus.idleConstraintSatisfied.get());
             if (checker.mayTriggerAfterCheck(job))
                 return;
         }
@@ -255,35 +390,21 @@ public final class TriggerLoop extends Service {
                 return;
             }
             if (df > 60 * 1000) {
-                PendingIntent pi = PendingIntent.getBroadcast(this, 0, new Intent(DEADLINE_BROADCAST), 0);
-                if (Build.VERSION.SDK_INT >= 19) {
-                    alarmManager.setExact(AlarmManager.RTC_WAKEUP, job.jobInfo.deadline, pi);
-                } else {
-                    alarmManager.set(AlarmManager.RTC_WAKEUP, job.jobInfo.deadline, pi);
-                }
-                job.deadLineObj = pi;
+                scheduleDeadline(job);
             } else {
-                Runnable r = new Runnable() {
-                    @Override
-                    public void run() {
-                        checker.checkDeadline();
-                    }
-                };
-                job.deadLineObj = r;
-                shortDeadlineHandler.postDelayed(r, df);
+                job.deadLineObj = deadlineWheel.schedule(job, df);
             }
         }
     }
 
     void removeJob(String tag) {
-        ArrayList<String> tobeRemoved = new ArrayList<>();
-        for (String key : jobSet.keySet()) {
-            Job job = jobSet.get(key);
-            if (job.jobInfo.tag.equals(tag)) {
-                tobeRemoved.add(key);
-            }
+        for (String k : tagIndex.get(tag)) {
+            removeOne(k);
         }
-        for (String k : tobeRemoved) {
+    }
+
+    void removeJobGroup(String tagPrefix) {
+        for (String k : tagIndex.withPrefix(tagPrefix)) {
             removeOne(k);
         }
     }
@@ -295,67 +416,222 @@ public final class TriggerLoop extends Service {
         }
         if (removed == null)
             return;
+        unindexJob(removed);
+        tagIndex.remove(removed.jobInfo.tag, removed.jobInfo.identity);
         deleteBackup(removed);
-        List<String> removedConds = new ArrayList<>();
-        for (Receiver c : removed.exConds) {
-            removedConds.add(c.getIdentify());
+        releaseReceivers(removed);
+        //deadline handle
+        if (removed.jobInfo.deadline != -1L) {
+            if (removed.deadLineObj instanceof TimingWheel.Timeout) {
+                deadlineWheel.cancel((TimingWheel.Timeout) removed.deadLineObj);
+                removed.deadLineObj = null;
+            } else {
+                cancelDeadline(removed);
+            }
         }
-        for (Map.Entry<String, Job> entry : jobSet.entrySet()) {
-            for (Receiver c : entry.getValue().exConds) {
-                if (removedConds.indexOf(c.getIdentify()) != -1) {
-                    removedConds.remove(c.getIdentify());
+    }
+
+    private void retainReceivers(Job job) {
+        //sharing and retaining in one go, releaseReceivers can't drop the condition in between
+        synchronized (dispatcher) {
+            job.shareConditions(conditions);
+            boolean changed = false;
+            List<Condition> added = new ArrayList<>();
+            for (Condition c : job.exConds) {
+                String identity = c.getIdentify();
+                Integer refs = receiverRefs.get(identity);
+                if (refs == null) {
+                    changed |= dispatcher.add(c);
+                    added.add(c);
+                    refs = 0;
+                }
+                receiverRefs.put(identity, refs + 1);
+            }
+            if (changed) {
+                dispatcher.refilter();
+            } else {
+                //no re-registration replays the sticky broadcasts to them
+                for (Condition c : added) {
+                    dispatcher.catchUp(c);
                 }
             }
         }
-        for (String k : removedConds) {
-            unregisterReceiver(receivers.get(k));
-            receivers.remove(k);
+    }
+
+    private void releaseReceivers(Job job) {
+        synchronized (dispatcher) {
+            boolean changed = false;
+            for (Condition c : job.exConds) {
+                String identity = c.getIdentify();
+                Integer refs = receiverRefs.get(identity);
+                if (refs == null)
+                    continue;
+                if (refs > 1) {
+                    receiverRefs.put(identity, refs - 1);
+                    continue;
+                }
+                //last one, nobody cares about this condition any more
+                receiverRefs.remove(identity);
+                changed |= dispatcher.remove(c);
+                conditions.release(identity);
+            }
+            if (changed) {
+                dispatcher.refilter();
+            }
         }
-        //deadline handle
-        if (removed.jobInfo.deadline != -1L) {
-            if (removed.deadLineObj instanceof PendingIntent) {
-                alarmManager.cancel((PendingIntent) removed.deadLineObj);
-            } else if (removed.deadLineObj instanceof Runnable) {
-                shortDeadlineHandler.removeCallbacks((Runnable) removed.deadLineObj);
+    }
+
+    private void indexJob(Job job) {
+        job.contentHash = job.hashCode();
+        synchronized (contentIndex) {
+            Set<String> jobs = contentIndex.get(job.contentHash);
+            if (jobs == null) {
+                jobs = new HashSet<>();
+                contentIndex.put(job.contentHash, jobs);
+            }
+            jobs.add(job.jobInfo.identity);
+        }
+        synchronized (condIndex) {
+            for (int id : job.condIds()) {
+                Set<String> jobs = condIndex.get(id);
+                if (jobs == null) {
+                    jobs = new HashSet<>();
+                    condIndex.put(id, jobs);
+                }
+                jobs.add(job.jobInfo.identity);
+            }
+        }
+    }
+
+    private void unindexJob(Job job) {
+        synchronized (contentIndex) {
+            Set<String> jobs = contentIndex.get(job.contentHash);
+            if (jobs != null) {
+                jobs.remove(job.jobInfo.identity);
+                if (jobs.isEmpty()) {
+                    contentIndex.remove(job.contentHash);
+                }
+            }
+        }
+        synchronized (condIndex) {
+            for (int id : job.condIds()) {
+                Set<String> jobs = condIndex.get(id);
+                if (jobs == null)
+                    continue;
+                jobs.remove(job.jobInfo.identity);
+                if (jobs.isEmpty()) {
+                    condIndex.remove(id);
+                }
             }
         }
     }
 
+    private List<String> jobsWithSameContent(Job job) {
+        List<String> ret = new ArrayList<>();
+        synchronized (contentIndex) {
+            Set<String> jobs = contentIndex.get(job.hashCode());
+            if (jobs == null)
+                return ret;
+            for (String identity : jobs) {
+                Job exist = jobSet.get(identity);
+                if (exist != null && exist.equals(job)) {
+                    ret.add(identity);
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Snapshot of the jobs which contain the given condition, safe to iterate while jobs are
+     * triggered and removed.
+     */
+    private List<String> jobsWithCondition(int condId) {
+        if (condId == ConditionKeys.INVALID)
+            return Collections.emptyList();
+        synchronized (condIndex) {
+            Set<String> jobs = condIndex.get(condId);
+            if (jobs == null)
+                return Collections.emptyList();
+            return new ArrayList<>(jobs);
+        }
+    }
+
+    private void scheduleDeadline(Job job) {
+        synchronized (deadlines) {
+            deadlines.add(job);
+            armDeadlineAlarmLocked();
+        }
+    }
+
+    private void cancelDeadline(Job job) {
+        synchronized (deadlines) {
+            if (deadlines.remove(job)) {
+                armDeadlineAlarmLocked();
+            }
+        }
+    }
+
+    /**
+     * Pop all jobs whose deadline is not later than now, the alarm moves on to the next one.
+     */
+    private List<Job> pollDueDeadlines(long now) {
+        List<Job> due = new ArrayList<>();
+        synchronized (deadlines) {
+            while (!deadlines.isEmpty() && deadlines.first().jobInfo.deadline <= now) {
+                due.add(deadlines.pollFirst());
+            }
+            armDeadlineAlarmLocked();
+        }
+        return due;
+    }
+
+    private void armDeadlineAlarmLocked() {
+        if (deadlines.isEmpty()) {
+            if (armedDeadline != -1L) {
+                alarmManager.cancel(deadlineAlarm);
+                armedDeadline = -1L;
+            }
+            return;
+        }
+        long next = deadlines.first().jobInfo.deadline;
+        if (next == armedDeadline)
+            return;
+        //same PendingIntent every time, so setting it again replaces the previous alarm
+        if (Build.VERSION.SDK_INT >= 19) {
+            alarmManager.setExact(AlarmManager.RTC_WAKEUP, next, deadlineAlarm);
+        } else {
+            alarmManager.set(AlarmManager.RTC_WAKEUP, next, deadlineAlarm);
+        }
+        armedDeadline = next;
+    }
+
     void cleanUpAll() {
         checker.cleanup();
         for (Map.Entry<String, Job> entry : jobSet.entrySet()) {
             Job job = entry.getValue();
             job.resetConds();
-            if (job.deadLineObj != null) {
-                if (job.deadLineObj instanceof PendingIntent) {
-                    alarmManager.cancel((PendingIntent) job.deadLineObj);
-                } else if (job.deadLineObj instanceof Runnable) {
-                    shortDeadlineHandler.removeCallbacks((Runnable) job.deadLineObj);
-                }
-            }
+            job.deadLineObj = null;
         }
         jobSet.clear();
-        for (Map.Entry<String, BroadcastReceiver> entry : receivers.entrySet()) {
-            BroadcastReceiver r = entry.getValue();
-            unregisterReceiver(r);
+        deadlineWheel.clear();
+        synchronized (deadlines) {
+            deadlines.clear();
+            armDeadlineAlarmLocked();
         }
-        receivers.clear();
-        deleteDir(new File(getFilesDir(), JOB_BACKUP_DIR));
-        deleteDir(new File(getFilesDir(), JOB_PERSIST_DIR));
-    }
-
-    private void deleteDir(File file) {
-        if (!file.exists() || !file.isDirectory()) {
-            return;
+        synchronized (condIndex) {
+            condIndex.clear();
         }
-        for (File f : file.listFiles()) {
-            if (f.isDirectory()) {
-                deleteDir(f);
-            } else {
-                f.delete();
-            }
+        synchronized (contentIndex) {
+            contentIndex.clear();
+        }
+        tagIndex.clear();
+        synchronized (dispatcher) {
+            dispatcher.clear();
+            receiverRefs.clear();
+            conditions.clear();
         }
-        file.delete();
+        jobStore.clear();
     }
 
     @Override
@@ -371,6 +647,8 @@ public final class TriggerLoop extends Service {
         if (!intent.hasExtra(PROTOCOL_KEY) || intent.getIntExtra(PROTOCOL_KEY, -1) != PROTOCOL_CODE) {
             throw new IllegalAccessError("TriggerLoop won't receive user command.");
         }
+        //started service keeps alive after unbinding, since then the fast path is safe
+        sStarted = this;
         if (intent.hasExtra(CONDITION_DATA)) {
             ConditionDesc condition = intent.getParcelableExtra(CONDITION_DATA);
             Log.d(TAG, condition.toString());
@@ -383,6 +661,17 @@ public final class TriggerLoop extends Service {
         return START_STICKY;
     }
 
+    private static class DeadlineComparator implements Comparator<Job> {
+
+        @Override
+        public int compare(Job lhs, Job rhs) {
+            if (lhs.jobInfo.deadline != rhs.jobInfo.deadline) {
+                return lhs.jobInfo.deadline < rhs.jobInfo.deadline ? -1 : 1;
+            }
+            return lhs.jobInfo.identity.compareTo(rhs.jobInfo.identity);
+        }
+    }
+
     private static class TriggerWorkerFactory implements ThreadFactory {
         static int counter = 0;
 
@@ -394,31 +683,97 @@ public final class TriggerLoop extends Service {
     }
 
     protected class TriggerBinder extends Binder {
-        void schedule(Job job) {
-            addJob(job, true);
+        void schedule(final Job job, final ExistingJobPolicy policy) {
+            whenReady(new Runnable() {
+                @Override
+                public void run() {
+                    addJob(job, true, policy);
+                }
+            });
         }
 
-        void cancel(String tag) {
-            removeJob(tag);
+        void cancel(final String tag) {
+            whenReady(new Runnable() {
+                @Override
+                public void run() {
+                    removeJob(tag);
+                }
+            });
         }
 
-        void removePersistJob(String tag) {
-            checker.removePersistJobWithTag(tag);
+        void cancelGroup(final String tagPrefix) {
+            whenReady(new Runnable() {
+                @Override
+                public void run() {
+                    removeJobGroup(tagPrefix);
+                }
+            });
+        }
+
+        void removePersistJob(final String tag) {
+            whenReady(new Runnable() {
+                @Override
+                public void run() {
+                    checker.removePersistJobWithTag(tag);
+                }
+            });
         }
 
         void stopAndReset() {
-            cleanUpAll();
+            whenReady(new Runnable() {
+                @Override
+                public void run() {
+                    cleanUpAll();
+                }
+            });
+        }
+
+        void setMaxBatchDelay(long delay) {
+            checker.setMaxBatchDelay(delay);
+        }
+
+        /**
+         * Block until persisting of all jobs scheduled or removed before is done.
+         */
+        void flush() {
+            try {
+                readyLatch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            jobStore.flush();
+        }
+
+        /**
+         * @return how many jobs load back from the store after persisting is done, for tests.
+         */
+        int persistedCount(boolean rebootOnly) {
+            flush();
+            return jobStore.load(rebootOnly).size();
         }
 
     }
 
     private class CheckHandler extends Handler {
-        private final int MSG_SATISFY = 1;
+        private final int MSG_BATCH = 1;
         private final int MSG_DEADLINE = 2;
         private final int MSG_DEVICE_ON = 3;
-        private final int MSG_STATUS_CHANGED = 4;
         private final int MSG_REMOVE_TAG_JOB = 5;
 
+        //pending condition and status updates, merged until the batch message is handled
+        private final Object batchLock = new Object();
+        private final LinkedHashMap<String, Boolean> pendingConds = new LinkedHashMap<>();
+        private final LinkedHashSet<String> pendingStatus = new LinkedHashSet<>();
+        //a batch message is sent or deferred, no other one is needed, guarded by batchLock
+        private boolean batchScheduled = false;
+        //signals arrived before startup is done, handled once it is, guarded by batchLock
+        private boolean batchDeferred = false;
+        private boolean deviceOnDeferred = false;
+        private volatile long maxBatchDelay = DEFAULT_MAX_BATCH_DELAY;
+        //recoveries not finished yet, each holds the wake lock, guarded by itself
+        private final HashSet<JobRecovery> recoveries = new HashSet<>();
+
         public CheckHandler(Looper looper) {
             super(looper);
         }
@@ -426,18 +781,29 @@ public final class TriggerLoop extends Service {
         @Override
         public void handleMessage(Message msg) {
             switch (msg.what) {
-                case MSG_SATISFY:
-                    checkSatisfyImpl((ConditionDesc) msg.obj);
+                case MSG_BATCH:
+                    //the jobs they are about may not be recovered yet
+                    if (!isReady()) {
+                        synchronized (batchLock) {
+                            //still scheduled, updates keep merging until it is resumed
+                            batchDeferred = batchScheduled;
+                        }
+                        break;
+                    }
+                    checkBatchImpl();
                     break;
                 case MSG_DEADLINE:
                     checkDeadlineImpl();
                     break;
                 case MSG_DEVICE_ON:
+                    if (!isReady()) {
+                        synchronized (batchLock) {
+                            deviceOnDeferred = true;
+                        }
+                        break;
+                    }
                     checkDeviceOnImpl();
                     break;
-                case MSG_STATUS_CHANGED:
-                    checkStatusChangedImpl((String) msg.obj);
-                    break;
                 case MSG_REMOVE_TAG_JOB:
                     removePersistJobWithTagImpl((String) msg.obj);
                     break;
@@ -446,68 +812,87 @@ public final class TriggerLoop extends Service {
             }
         }
 
-        private void checkSatisfyImpl(ConditionDesc cond) {
+        private void checkBatchImpl() {
+            final Map<String, Boolean> conds;
+            final Set<String> status;
+            synchronized (batchLock) {
+                conds = new LinkedHashMap<>(pendingConds);
+                status = new LinkedHashSet<>(pendingStatus);
+                pendingConds.clear();
+                pendingStatus.clear();
+                batchScheduled = false;
+            }
             tryAcquireLock();
-            for (Map.Entry<String, Job> entry : jobSet.entrySet()) {
-                final Job job = entry.getValue();
-                boolean hit = true;
-                for (String key : job.condSatisfied.keySet()) {
-                    if (key.equals(cond.ident)) {
-                        job.condSatisfied.put(key, cond.satisfy);
-                    }
-                    if (hit) {
-                        hit = job.condSatisfied.get(key);
-                    }
-                }
-                if (hit) {
-                    trigger(job);
+            //apply all updates first, then every touched job is evaluated once
+            Set<String> touched = new LinkedHashSet<>();
+            for (String which : status) {
+                checkStatusChangedImpl(which, touched);
+            }
+            for (Map.Entry<String, Boolean> entry : conds.entrySet()) {
+                checkSatisfyImpl(entry.getKey(), entry.getValue(), touched);
+            }
+            for (String identity : touched) {
+                final Job job = jobSet.get(identity);
+                if (job != null) {
+                    mayTriggerAfterCheck(job);
                 }
             }
             tryReleaseLock();
         }
 
-        private void checkStatusChangedImpl(final String which) {
-            tryAcquireLock();
+        private void checkSatisfyImpl(String ident, boolean satisfy, Set<String> touched) {
+            final int condId = ConditionKeys.idOf(ident);
+            if (condId == ConditionKeys.INVALID)
+                return;
+            for (String identity : jobsWithCondition(condId)) {
+                final Job job = jobSet.get(identity);
+                if (job == null)
+                    continue;
+                job.setSatisfied(condId, satisfy);
+                touched.add(identity);
+            }
+        }
+
+        private void checkStatusChangedImpl(final String which, Set<String> touched) {
             //while code runs here, all status have been refreshed, we just check all jobs here and
             //try to find out which can be triggered.
-            for (String key : jobSet.keySet()) {
+            final int condId = ConditionKeys.idOf(which);
+            for (String key : jobsWithCondition(condId)) {
                 Job job = jobSet.get(key);
-                switch (which) {
-                    case Job.CHARGING_KEY:
-                        if (job.condSatisfied.containsKey(Job.CHARGING_KEY)) {
-                            job.condSatisfied.put(Job.CHARGING_KEY,
-                                    DeviceStatus.chargingConstraintSatisfied.get());
-                        }
+                if (job == null)
+                    continue;
+                switch (condId) {
+                    case ConditionKeys.CHARGING:
+                        job.setSatisfied(condId, DeviceStatus.chargingConstraintSatisfied.get());
                         break;
-                    case Job.IDLE_DEVICE_KEY:
-                        if (job.condSatisfied.containsKey(Job.IDLE_DEVICE_KEY)) {
-                            job.condSatisfied.put(Job.IDLE_DEVICE_KEY,
-                                    DeviceStatus.idleConstraintSatisfied.get());
-                        }
+                    case ConditionKeys.IDLE_DEVICE:
+                        job.setSatisfied(condId, DeviceStatus.idleConstraintSatisfied.get());
                         break;
-                    case Job.NETWORK_TYPE_KEY:
-                        if (job.condSatisfied.containsKey(Job.NETWORK_TYPE_KEY)) {
-                            job.condSatisfied.put(Job.NETWORK_TYPE_KEY,
-                                    DeviceStatus.networkTypeSatisfied(job.jobInfo.networkType));
-                        }
+                    case ConditionKeys.NETWORK_TYPE:
+                        job.setSatisfied(condId, DeviceStatus.networkTypeSatisfied(job.jobInfo.networkType));
                         break;
                     default:
                         break;
                 }
-                if (job.condSatisfied.containsKey(which)) {
-                    mayTriggerAfterCheck(job);
-                }
+                touched.add(key);
             }
-            tryReleaseLock();
         }
 
         private void checkDeadlineImpl() {
+            synchronized (deadlines) {
+                //the alarm is spent, even if it came early for the first deadline it has to be set again
+                armedDeadline = -1L;
+            }
+            fireDeadlines(pollDueDeadlines(System.currentTimeMillis()));
+        }
+
+        void fireDeadlines(List<Job> due) {
             tryAcquireLock();
-            long now = System.currentTimeMillis();
-            for (Map.Entry<String, Job> entry : jobSet.entrySet()) {
-                final Job job = entry.getValue();
+            for (Job job : due) {
+                if (!jobSet.containsKey(job.jobInfo.identity))
+                    continue;
                 long happen = jobHappens.get(job.jobInfo.identity) == null ? -1 : jobHappens.get(job.jobInfo.identity);
-                if (happen == -1L && (job.jobInfo.deadline > 0 && job.jobInfo.deadline <= now)) { //not happen yet
+                if (happen == -1L) { //not happen yet
                     trigger(job);
                 }
             }
@@ -515,70 +900,46 @@ public final class TriggerLoop extends Service {
         }
 
         private void checkDeviceOnImpl() {
+            recoverJobs(true, null);
+        }
+
+        /**
+         * Recover persisted jobs batch by batch on this thread, done runs after all of them are admitted.
+         *
+         * @param afterReboot only recover the jobs persisted after reboot, as fresh ones
+         */
+        void recoverJobs(boolean afterReboot, Runnable done) {
             tryAcquireLock();
-            final File dir = new File(getFilesDir(), JOB_PERSIST_DIR);
-            if (dir.listFiles() == null)
-                return;
-            for (File f : dir.listFiles()) {
-                if (!f.getName().startsWith("1553")) {
-                    f.delete();
-                    continue;
-                }
-                Job.JobInfo info = null;
-                try {
-                    info = Job.JobInfo.readFromFile(f);
-                } catch (IOException ignore) {
-                }
-                if (info != null) {
-                    Job job = Job.createJobFromPersistInfo(info);
-                    if (job != null) {
-                        jobHappens.remove(job.jobInfo.identity);
-                        addJob(job, true);
-                    }
-                } else {
-                    f.delete();
-                }
+            Collection<Job.JobInfo> infos = jobStore.load(afterReboot);
+            RecoveryCallback callback = new RecoveryCallback(afterReboot, done);
+            synchronized (recoveries) {
+                callback.recovery = JobRecovery.start(infos, conditions, this, callback);
+                recoveries.add(callback.recovery);
             }
-            tryReleaseLock();
         }
 
-        private void removePersistJobWithTagImpl(String tag) {
-            File backupDir = new File(getFilesDir(), JOB_BACKUP_DIR);
-            File persistDir = new File(getFilesDir(), JOB_PERSIST_DIR);
-            if (backupDir.exists() && backupDir.listFiles() != null) {
-                for (File f : backupDir.listFiles()) {
-                    try {
-                        Job.JobInfo info = Job.JobInfo.readFromFile(f);
-                        if (info != null && info.tag.equals(tag)) {
-                            f.delete();
-                        }
-                    } catch (IOException ignore) {
-                    }
+        /**
+         * Called on this thread once startup is done, handles the signals deferred until then.
+         */
+        void onStartedUp() {
+            synchronized (batchLock) {
+                if (deviceOnDeferred) {
+                    deviceOnDeferred = false;
+                    sendEmptyMessage(MSG_DEVICE_ON);
                 }
-            }
-            if (persistDir.exists() && persistDir.listFiles() != null) {
-                for (File f : persistDir.listFiles()) {
-                    try {
-                        Job.JobInfo info = Job.JobInfo.readFromFile(f);
-                        if (info != null && info.tag.equals(tag)) {
-                            f.delete();
-                        }
-                    } catch (IOException ignore) {
-                    }
+                if (batchDeferred) {
+                    batchDeferred = false;
+                    sendEmptyMessage(MSG_BATCH);
                 }
             }
         }
 
+        private void removePersistJobWithTagImpl(String tag) {
+            jobStore.removeWithTag(tag);
+        }
+
         boolean mayTriggerAfterCheck(final Job job) {
-            boolean hit = false;
-            for (String key : job.condSatisfied.keySet()) {
-                if (job.condSatisfied.get(key)) {
-                    hit = true;
-                } else {
-                    hit = false;
-                    break;
-                }
-            }
+            boolean hit = job.allSatisfied();
             if (hit) {
                 trigger(job);
             }
@@ -594,10 +955,15 @@ public final class TriggerLoop extends Service {
                     return;
                 }
             }
+            final Act act = job.obtainAction();
+            if (act == null) {
+                Log.w(TAG, "Can not create action " + job.jobInfo.actionClzName + ", drop " + job.jobInfo.identity);
+                removeOne(job.jobInfo.identity);
+                return;
+            }
             Runnable r = new Runnable() {
                 @Override
                 public void run() {
-                    Act act = job.action;
                     if (act instanceof Action) {
                         ((Action) act).act();
                     } else if (act instanceof ContextAction) {
@@ -608,19 +974,35 @@ public final class TriggerLoop extends Service {
             if (job.jobInfo.threadSpace == ThreadSpace.MAIN) {
                 mainHandler.post(r);
             } else {
-                executor.submit(r);
+                executor.execute(r, job.jobInfo.priority);
             }
             jobHappens.put(job.jobInfo.identity, SystemClock.elapsedRealtime());
-            removeOne(job.jobInfo.identity);
-            job.resetConds();
             if (job.jobInfo.repeat) {
-                addJob(job, false);
+                rearm(job);
+            } else {
+                removeOne(job.jobInfo.identity);
+            }
+        }
+
+        /**
+         * Get a repeat job ready for the next run in place. Receivers, indexes, deadline and the
+         * persisted record stay as they are, only the per-run state is reset.
+         */
+        private void rearm(Job job) {
+            job.resetConds();
+            //a deadline which has passed has fired already, don't arm it again
+            if (job.jobInfo.deadline != -1L && job.jobInfo.deadline <= System.currentTimeMillis()) {
+                job.deadLineObj = null;
             }
         }
 
 
         public void checkSatisfy(ConditionDesc cond) {
-            obtainMessage(MSG_SATISFY, cond).sendToTarget();
+            synchronized (batchLock) {
+                //only the latest status of the same condition matters
+                pendingConds.put(cond.ident, cond.satisfy);
+                scheduleBatchLocked();
+            }
         }
 
         public void checkDeadline() {
@@ -632,7 +1014,25 @@ public final class TriggerLoop extends Service {
         }
 
         public void checkStatusChanged(String which) {
-            obtainMessage(MSG_STATUS_CHANGED, which).sendToTarget();
+            synchronized (batchLock) {
+                pendingStatus.add(which);
+                scheduleBatchLocked();
+            }
+        }
+
+        private void scheduleBatchLocked() {
+            if (batchScheduled)
+                return;
+            batchScheduled = true;
+            sendEmptyMessageDelayed(MSG_BATCH, maxBatchDelay);
+        }
+
+        /**
+         * @param delay max time in millis an update may wait for others to be merged with it,
+         *              0 means only updates already queued are merged.
+         */
+        public void setMaxBatchDelay(long delay) {
+            maxBatchDelay = delay;
         }
 
         public void removePersistJobWithTag(String tag) {
@@ -640,7 +1040,65 @@ public final class TriggerLoop extends Service {
         }
 
         public void cleanup() {
-            removeCallbacksAndMessages(null);
+            List<JobRecovery> running;
+            synchronized (recoveries) {
+                running = new ArrayList<>(recoveries);
+                recoveries.clear();
+            }
+            //their remaining batches and final callbacks never come, the wake lock goes here
+            for (JobRecovery recovery : running) {
+                if (recovery.cancel()) {
+                    tryReleaseLock();
+                }
+            }
+            synchronized (batchLock) {
+                removeCallbacksAndMessages(null);
+                pendingConds.clear();
+                pendingStatus.clear();
+                //nothing is sent or deferred any more
+                batchScheduled = false;
+                batchDeferred = false;
+                deviceOnDeferred = false;
+            }
+        }
+
+        private class RecoveryCallback implements JobRecovery.Callback {
+            private final boolean afterReboot;
+            private final Runnable done;
+            private JobRecovery recovery;
+
+            RecoveryCallback(boolean afterReboot, Runnable done) {
+                this.afterReboot = afterReboot;
+                this.done = done;
+            }
+
+            @Override
+            public void onRecovered(List<Job> jobs) {
+                for (Job job : jobs) {
+                    if (afterReboot) {
+                        jobHappens.remove(job.jobInfo.identity);
+                    }
+                    addJob(job, true);
+                }
+            }
+
+            @Override
+            public void onDropped(Job.JobInfo info) {
+                jobStore.remove(info.identity);
+            }
+
+            @Override
+            public void onFinished(int recovered, int dropped, long costMillis) {
+                Log.i(TAG, (afterReboot ? "Device on" : "Service started") + ", recovered " + recovered
+                        + " jobs and dropped " + dropped + " in " + costMillis + "ms");
+                synchronized (recoveries) {
+                    recoveries.remove(recovery);
+                }
+                tryReleaseLock();
+                if (done != null) {
+                    done.run();
+                }
+            }
         }
     }
 
@@ -652,16 +1110,129 @@ public final class TriggerLoop extends Service {
         }
     }
 
-    private class ReceiverInner extends BroadcastReceiver {
-        private final Receiver receiver;
+    /**
+     * Registered once with the union of all conditions' actions, and re-registered only while
+     * that set of actions changes. Callers hold its monitor while changing it.
+     * <p/>
+     * Every registration gets the sticky broadcasts of all actions again, those only go to the
+     * conditions which have not seen them yet.
+     */
+    private class ConditionDispatcher extends BroadcastReceiver {
+        //action -> conditions listening on it
+        private final HashMap<String, List<Condition>> table = new HashMap<>();
+        //action -> conditions added since the last sticky broadcast of it
+        private final HashMap<String, List<Condition>> awaitingSticky = new HashMap<>();
+        private boolean registered = false;
+
+        /**
+         * @return true if a new action has been added.
+         */
+        boolean add(Condition condition) {
+            boolean changed = false;
+            for (String act : condition.getAction()) {
+                List<Condition> list = table.get(act);
+                if (list == null) {
+                    list = new ArrayList<>(1);
+                    table.put(act, list);
+                    changed = true;
+                }
+                list.add(condition);
+                List<Condition> awaiting = awaitingSticky.get(act);
+                if (awaiting == null) {
+                    awaiting = new ArrayList<>(1);
+                    awaitingSticky.put(act, awaiting);
+                }
+                awaiting.add(condition);
+            }
+            return changed;
+        }
+
+        /**
+         * @return true if an action is no longer needed.
+         */
+        boolean remove(Condition condition) {
+            boolean changed = false;
+            for (String act : condition.getAction()) {
+                List<Condition> awaiting = awaitingSticky.get(act);
+                if (awaiting != null && awaiting.remove(condition) && awaiting.isEmpty()) {
+                    awaitingSticky.remove(act);
+                }
+                List<Condition> list = table.get(act);
+                if (list == null)
+                    continue;
+                list.remove(condition);
+                if (list.isEmpty()) {
+                    table.remove(act);
+                    changed = true;
+                }
+            }
+            return changed;
+        }
+
+        /**
+         * Hand the current sticky broadcasts of the condition's actions to it alone, for a
+         * condition which joins actions already registered.
+         */
+        void catchUp(final Condition condition) {
+            for (String act : condition.getAction()) {
+                List<Condition> awaiting = awaitingSticky.get(act);
+                if (awaiting != null && awaiting.remove(condition) && awaiting.isEmpty()) {
+                    awaitingSticky.remove(act);
+                }
+                //a null receiver only returns the sticky intent
+                final Intent sticky = registerReceiver(null, new IntentFilter(act));
+                if (sticky == null)
+                    continue;
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        condition.onReceive(TriggerLoop.this, sticky);
+                    }
+                });
+            }
+        }
+
+        void refilter() {
+            if (registered) {
+                unregisterReceiver(this);
+                registered = false;
+            }
+            if (table.isEmpty())
+                return;
+            IntentFilter filter = new IntentFilter();
+            for (String act : table.keySet()) {
+                filter.addAction(act);
+            }
+            registerReceiver(this, filter);
+            registered = true;
+        }
 
-        private ReceiverInner(Receiver receiver) {
-            this.receiver = receiver;
+        void clear() {
+            table.clear();
+            awaitingSticky.clear();
+            refilter();
         }
 
         @Override
         public void onReceive(Context context, Intent intent) {
-            receiver.onReceive(context, intent);
+            List<Condition> targets;
+            synchronized (this) {
+                List<Condition> list;
+                if (isInitialStickyBroadcast()) {
+                    //replayed by a re-registration, the others have got it already
+                    list = awaitingSticky.remove(intent.getAction());
+                } else {
+                    //everyone sees the latest state now
+                    awaitingSticky.remove(intent.getAction());
+                    list = table.get(intent.getAction());
+                }
+                if (list == null)
+                    return;
+                targets = new ArrayList<>(list);
+            }
+            for (Condition c : targets) {
+                c.onReceive(context, intent);
+            }
         }
     }
 
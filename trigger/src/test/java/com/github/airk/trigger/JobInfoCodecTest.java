@@ -0,0 +1,172 @@
+/*
+ * Copyright 2015 Kevin Liu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.airk.trigger;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class JobInfoCodecTest {
+
+    static Job.JobInfo newInfo(String identity) {
+        Job.JobInfo info = new Job.JobInfo();
+        info.identity = identity;
+        info.tag = "tag";
+        info.actionClzName = "com.example.Action";
+        return info;
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        Job.JobInfo info = newInfo("id");
+        info.persistAfterReboot = true;
+        info.threadSpace = ThreadSpace.MAIN;
+        info.networkType = Job.NETWORK_TYPE_UNMETERED;
+        info.needCharging = true;
+        info.needDeviceIdle = true;
+        info.repeat = true;
+        info.delay = 5000L;
+        info.deadline = -1L;
+        info.priority = Job.PRIORITY_HIGH;
+        info.conditions.addAll(Arrays.asList("com.example.A", "com.example.B", "com.example.A"));
+
+        Job.JobInfo read = JobInfoCodec.fromBytes(JobInfoCodec.toBytes(info));
+        assertEquals(info, read);
+        assertEquals("id", read.identity);
+        assertEquals(Job.PRIORITY_HIGH, read.priority);
+    }
+
+    @Test
+    public void nullStringsSurvive() throws IOException {
+        Job.JobInfo info = newInfo("id");
+        info.actionClzName = null;
+        Job.JobInfo read = JobInfoCodec.fromBytes(JobInfoCodec.toBytes(info));
+        assertNull(read.actionClzName);
+        assertEquals("tag", read.tag);
+    }
+
+    @Test
+    public void repeatedStringsAreReferenced() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        JobInfoCodec.Encoder encoder = new JobInfoCodec.Encoder();
+        encoder.write(out, newInfo("1"));
+        int first = out.size();
+        encoder.write(out, newInfo("2"));
+        assertTrue(out.size() - first < first);
+    }
+
+    @Test
+    public void unknownVersionIsRejected() {
+        assertBroken(new byte[]{'T', 'J', 2});
+        assertBroken(new byte[]{'J', 'T', 1});
+    }
+
+    @Test
+    public void hugeStringLengthIsRejected() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        JobInfoCodec.writeHeader(out);
+        writeNumbers(out);
+        //new string, length reads as -1 once cast to int
+        JobInfoCodec.writeVarLong(out, 1);
+        JobInfoCodec.writeVarLong(out, 0xFFFFFFFFL);
+        assertBroken(bytes.toByteArray());
+
+        bytes.reset();
+        JobInfoCodec.writeHeader(out);
+        writeNumbers(out);
+        JobInfoCodec.writeVarLong(out, 1);
+        JobInfoCodec.writeVarLong(out, Integer.MAX_VALUE);
+        assertBroken(bytes.toByteArray());
+    }
+
+    @Test
+    public void badStringReferenceIsRejected() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        JobInfoCodec.writeHeader(out);
+        writeNumbers(out);
+        JobInfoCodec.writeVarLong(out, 5);
+        assertBroken(bytes.toByteArray());
+
+        bytes.reset();
+        JobInfoCodec.writeHeader(out);
+        writeNumbers(out);
+        JobInfoCodec.writeVarLong(out, 0x100000002L);
+        assertBroken(bytes.toByteArray());
+    }
+
+    @Test
+    public void hugeConditionCountIsRejected() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        JobInfoCodec.writeHeader(out);
+        writeNumbers(out);
+        JobInfoCodec.writeVarLong(out, 0);
+        JobInfoCodec.writeVarLong(out, 0);
+        JobInfoCodec.writeVarLong(out, 0);
+        JobInfoCodec.writeVarLong(out, 0xFFFFFFFFL);
+        assertBroken(bytes.toByteArray());
+    }
+
+    @Test
+    public void truncatedStreamIsRejected() throws IOException {
+        byte[] bytes = JobInfoCodec.toBytes(newInfo("id"));
+        assertBroken(Arrays.copyOf(bytes, bytes.length - 1));
+    }
+
+    @Test
+    public void signedVarLongRoundTrip() throws IOException {
+        long[] values = {0, 1, -1, 63, -64, Long.MAX_VALUE, Long.MIN_VALUE};
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (long value : values) {
+            JobInfoCodec.writeSignedVarLong(out, value);
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        for (long value : values) {
+            assertEquals(value, JobInfoCodec.readSignedVarLong(in));
+        }
+    }
+
+    //flags, network type, delay, deadline and priority
+    private static void writeNumbers(DataOutputStream out) throws IOException {
+        for (int i = 0; i < 5; i++) {
+            out.writeByte(0);
+        }
+    }
+
+    private static void assertBroken(byte[] bytes) {
+        try {
+            JobInfoCodec.fromBytes(bytes);
+            fail("Broken stream was accepted.");
+        } catch (IOException expected) {
+        }
+    }
+}
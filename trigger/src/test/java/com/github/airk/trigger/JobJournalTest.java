@@ -0,0 +1,239 @@
+/*
+ * Copyright 2015 Kevin Liu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.airk.trigger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class JobJournalTest {
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("journal", "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        delete(dir);
+    }
+
+    private JobJournal open() {
+        return new JobJournal(dir, "jobs", DIRECT, new File(dir, "legacy"));
+    }
+
+    private File journalFile() {
+        return new File(dir, "jobs.journal");
+    }
+
+    @Test
+    public void putAndRemoveSurviveReopen() {
+        JobJournal journal = open();
+        journal.put(JobInfoCodecTest.newInfo("1"));
+        journal.put(JobInfoCodecTest.newInfo("2"));
+        journal.put(JobInfoCodecTest.newInfo("3"));
+        journal.remove("2");
+
+        Map<String, Job.JobInfo> loaded = open().load();
+        assertEquals(2, loaded.size());
+        assertTrue(loaded.containsKey("1"));
+        assertTrue(loaded.containsKey("3"));
+    }
+
+    @Test
+    public void removeWithTagOnlyTouchesTheTag() {
+        JobJournal journal = open();
+        Job.JobInfo other = JobInfoCodecTest.newInfo("1");
+        other.tag = "other";
+        journal.put(other);
+        journal.put(JobInfoCodecTest.newInfo("2"));
+        journal.put(JobInfoCodecTest.newInfo("3"));
+        journal.removeWithTag("tag");
+
+        Map<String, Job.JobInfo> loaded = open().load();
+        assertEquals(1, loaded.size());
+        assertTrue(loaded.containsKey("1"));
+    }
+
+    @Test
+    public void compactionKeepsLiveJobs() {
+        JobJournal journal = open();
+        for (int i = 0; i < 100; i++) {
+            journal.put(JobInfoCodecTest.newInfo("same"));
+        }
+        journal.put(JobInfoCodecTest.newInfo("other"));
+        assertTrue(new File(dir, "jobs.snapshot").exists());
+
+        Map<String, Job.JobInfo> loaded = open().load();
+        assertEquals(2, loaded.size());
+    }
+
+    @Test
+    public void tornTailIsCutOff() throws IOException {
+        JobJournal journal = open();
+        journal.put(JobInfoCodecTest.newInfo("1"));
+        journal.put(JobInfoCodecTest.newInfo("2"));
+        long length = journalFile().length();
+        //a put record the process died in the middle of
+        append(new byte[]{1, 0, 0});
+
+        journal = open();
+        assertEquals(2, journal.load().size());
+        assertEquals(length, journalFile().length());
+        journal.put(JobInfoCodecTest.newInfo("3"));
+        assertEquals(3, open().load().size());
+    }
+
+    @Test
+    public void unfinishedBatchIsDropped() throws IOException {
+        JobJournal journal = open();
+        journal.put(JobInfoCodecTest.newInfo("1"));
+        long length = journalFile().length();
+        //batch begin, then a complete put whose batch never ends
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(3);
+        out.writeByte(1);
+        Job.JobInfo info = new Job.JobInfo();
+        info.identity = "2";
+        new JobInfoCodec.Encoder().write(out, info);
+        append(bytes.toByteArray());
+
+        Map<String, Job.JobInfo> loaded = open().load();
+        assertEquals(1, loaded.size());
+        assertTrue(loaded.containsKey("1"));
+        assertEquals(length, journalFile().length());
+    }
+
+    @Test
+    public void appendAfterCutTailReloads() throws IOException {
+        JobJournal journal = open();
+        journal.put(JobInfoCodecTest.newInfo("1"));
+        //an unfinished batch bringing new strings, gone with the cut
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(3);
+        out.writeByte(1);
+        Job.JobInfo torn = JobInfoCodecTest.newInfo("2");
+        torn.tag = "torn";
+        torn.actionClzName = "com.example.Torn";
+        new JobInfoCodec.Encoder().write(out, torn);
+        append(bytes.toByteArray());
+
+        journal = open();
+        journal.put(torn);
+        Job.JobInfo info = JobInfoCodecTest.newInfo("3");
+        info.tag = "torn";
+        journal.put(info);
+
+        Map<String, Job.JobInfo> loaded = open().load();
+        assertEquals(3, loaded.size());
+        assertEquals("torn", loaded.get("3").tag);
+        assertEquals("com.example.Torn", loaded.get("2").actionClzName);
+    }
+
+    @Test
+    public void finishedBatchIsApplied() {
+        JobJournal journal = open();
+        journal.beginBatch();
+        journal.put(JobInfoCodecTest.newInfo("1"));
+        journal.put(JobInfoCodecTest.newInfo("2"));
+        journal.endBatch();
+
+        assertEquals(2, open().load().size());
+    }
+
+    @Test
+    public void corruptRecordIsCutOff() throws IOException {
+        JobJournal journal = open();
+        journal.put(JobInfoCodecTest.newInfo("1"));
+        long length = journalFile().length();
+        //put record whose identity claims a length of -1
+        append(new byte[]{0x01, 0x00, 0x00, 0x00, 0x00, 0x00, 0x01,
+                (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x0f});
+
+        journal = open();
+        assertEquals(1, journal.load().size());
+        assertEquals(length, journalFile().length());
+    }
+
+    @Test
+    public void zeroFilledTailIsCutOff() throws IOException {
+        JobJournal journal = open();
+        journal.put(JobInfoCodecTest.newInfo("1"));
+        long length = journalFile().length();
+        append(new byte[64]);
+
+        journal = open();
+        assertEquals(1, journal.load().size());
+        assertEquals(length, journalFile().length());
+    }
+
+    @Test
+    public void legacyJobsAreImported() throws IOException {
+        File legacy = new File(dir, "legacy");
+        legacy.mkdirs();
+        FileWriter writer = new FileWriter(new File(legacy, "1.job"));
+        writer.write("{\"identity\":\"1\",\"tag\":\"tag\",\"actname\":\"com.example.Action\"}");
+        writer.close();
+
+        Map<String, Job.JobInfo> loaded = open().load();
+        assertEquals(1, loaded.size());
+        assertFalse(legacy.exists());
+        assertEquals(1, open().load().size());
+    }
+
+    private void append(byte[] bytes) throws IOException {
+        FileOutputStream out = new FileOutputStream(journalFile(), true);
+        out.write(bytes);
+        out.close();
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                delete(f);
+            }
+        }
+        file.delete();
+    }
+}